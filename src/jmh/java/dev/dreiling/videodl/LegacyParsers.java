@@ -0,0 +1,54 @@
+package dev.dreiling.videodl;
+
+// Output handling as it was before ProgressParser, ErrorTail and the progress template, frozen here as the
+// baseline of OutputParsingBenchmark. Not used by the app.
+class LegacyParsers {
+
+    // Remove fragment information from download messages
+    static String cleanStatus(String line) {
+        if (line == null || line.isEmpty()) {
+            return "";
+        }
+
+        if (line.startsWith("[download]")) {
+            int fragIndex = line.indexOf("frag");
+
+            if (fragIndex != -1) {
+                return line.substring(0, fragIndex-2).trim();
+            }
+        }
+
+        return line;
+    }
+
+    // Extract the error occurred during download
+    static String extractErrorMessage(String output) {
+        // Find lines containing "error" or "unable"
+        StringBuilder errors = new StringBuilder();
+        for (String line : output.split("\\R")) {
+            if (line.toLowerCase().contains("error")) {
+                errors.append(line);
+            }
+        }
+        return !errors.isEmpty() ? errors.toString().trim() : "Unknown error occurred.";
+    }
+
+    // Parse progress, Example line: [download] 42.1% of 5.00MiB at 1.23MiB/s ETA 00:10
+    static Double parseProgress(String line) {
+        if (line == null || !line.startsWith("[download]")) {
+            return null;
+        }
+
+        int percentIndex = line.indexOf('%');
+        if (percentIndex != -1) {
+            try {
+                int start = line.lastIndexOf(' ', percentIndex - 1) + 1;
+                String percentage = line.substring(start, percentIndex).trim();
+                return Double.parseDouble(percentage) / 100.0;
+            }
+            catch (NumberFormatException | StringIndexOutOfBoundsException ignored) {
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,115 @@
+package dev.dreiling.videodl;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Benchmarks the per-line output handling against yt-dlp transcripts (src/test/resources/transcripts).
+// Each invocation processes a whole transcript, run with: mvn -Pbench verify
+// dash, hls and audio are reproduced from the yt-dlp output format with made up values. Transcripts of real
+// downloads are recorded with src/jmh/record-transcript.sh and selected with -Djmh.transcripts=<name>,...
+// Last results: src/jmh/results/OutputParsingBenchmark.json
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutputParsingBenchmark {
+
+    // dash: separate video and audio streams, hls: 3600 fragments, audio: audio only
+    @Param({ "dash", "hls", "audio" })
+    public String transcript;
+
+    private String[] lines;
+    private char[][] templateLines;
+    private String output;
+    private String errorOutput;
+    private String[] titles;
+    private final ProgressParser parser = new ProgressParser();
+    private final ProgressEvent event = new ProgressEvent();
+
+    @Setup
+    public void load() throws IOException {
+        output = read(transcript + ".txt");
+        lines = output.split("\n");
+
+        String[] template = read(transcript + "-template.txt").split("\n");
+        templateLines = new char[template.length][];
+        for (int i = 0; i < template.length; i++) {
+            templateLines[i] = template[i].toCharArray();
+        }
+
+        errorOutput = read("error.txt");
+        titles = read("titles.txt").split("\n");
+    }
+
+    private static String read(String name) throws IOException {
+        try (InputStream in = OutputParsingBenchmark.class.getResourceAsStream("/transcripts/" + name)) {
+            if (in == null) throw new IOException("Transcript not found: " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public void cleanStatus(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(LegacyParsers.cleanStatus(line.trim()));
+        }
+    }
+
+    @Benchmark
+    public void filterMessage(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(Utils.filterMessage(line));
+        }
+    }
+
+    @Benchmark
+    public void parseProgress(Blackhole bh) {
+        for (String line : lines) {
+            bh.consume(LegacyParsers.parseProgress(line));
+        }
+    }
+
+    // The full per-line path as it was before ProgressParser: clean, filter, parse
+    @Benchmark
+    public void legacyLinePipeline(Blackhole bh) {
+        for (String line : lines) {
+            String parsed = LegacyParsers.cleanStatus(line.trim());
+            bh.consume(Utils.filterMessage(parsed));
+            bh.consume(LegacyParsers.parseProgress(parsed));
+        }
+    }
+
+    // Same transcript recorded with --progress-template, parsed from char buffers
+    @Benchmark
+    public void progressParser(Blackhole bh) {
+        for (char[] line : templateLines) {
+            bh.consume(parser.parse(line, 0, line.length, event));
+        }
+        bh.consume(event.getProgress());
+    }
+
+    @Benchmark
+    public String extractErrorMessage() {
+        return LegacyParsers.extractErrorMessage(output);
+    }
+
+    @Benchmark
+    public void sanitizeTitle(Blackhole bh) {
+        for (String title : titles) {
+            bh.consume(Utils.sanitizeTitle(title));
+        }
+    }
+
+    // Failed run with several error lines
+    @Benchmark
+    public String extractErrorMessageFailedRun() {
+        return LegacyParsers.extractErrorMessage(errorOutput);
+    }
+}
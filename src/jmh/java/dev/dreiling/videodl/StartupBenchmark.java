@@ -0,0 +1,88 @@
+package dev.dreiling.videodl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cold start of the shaded jar in a new JVM per invocation: time until the window has drawn its first frame
+// (-Dvideodl.startup-probe=true exits right after it) and until the command line mode has printed its usage.
+// The first frame needs a desktop session (xvfb-run on CI). The jar is the one built by the bench profile,
+// with -Pcds its class data sharing archive can be compared too:
+//   mvn -Pbench,cds verify -Djmh.includes=StartupBenchmark -Djmh.sharing=off,jdk,app
+// Without a display only headless can run. Its archive is then trained on the command line mode, after the jar is built:
+//   mvn -Pbench package -DskipTests
+//   java -XX:ArchiveClassesAtExit=target/bench/VideoDL.jsa -jar target/bench/VideoDL-1.0.jar --help
+//   mvn -Pbench exec:exec@run-benchmarks -Djmh.includes=StartupBenchmark.headless -Djmh.sharing=off,jdk,app
+// src/jmh/results/StartupBenchmark.json is such a headless run.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    // off: no class data sharing, jdk: the JDK's default archive, app: JDK and app classes from VideoDL.jsa
+    @Param({ "off", "jdk" })
+    public String sharing;
+
+    private File jar;
+    private File home;
+
+    @Setup
+    public void locate() throws IOException {
+        jar = new File(System.getProperty("videodl.bench.jar", "target/VideoDL-1.0.jar"));
+        if (!jar.isFile()) throw new IllegalStateException("Jar not found, build it first: " + jar);
+
+        // Own user.home, so no history or unfinished jobs of the machine are picked up
+        home = Files.createTempDirectory("videodl-startup").toFile();
+    }
+
+    @Benchmark
+    public void firstFrame() throws Exception {
+        run("-Dvideodl.startup-probe=true");
+    }
+
+    @Benchmark
+    public void headless() throws Exception {
+        run("--help");
+    }
+
+    private void run(String option) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath());
+        switch (sharing) {
+            case "off" -> command.add("-Xshare:off");
+            case "app" -> {
+                File archive = new File(jar.getParentFile(), "VideoDL.jsa");
+                if (!archive.isFile()) throw new IllegalStateException("CDS archive not found, build with -Pcds: " + archive);
+                command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+            }
+        }
+        command.add("-Duser.home=" + home.getAbsolutePath());
+
+        // System properties go before the jar, arguments after it
+        if (option.startsWith("-D")) {
+            command.add(option);
+            command.add("-jar");
+            command.add(jar.getAbsolutePath());
+        }
+        else {
+            command.add("-jar");
+            command.add(jar.getAbsolutePath());
+            command.add(option);
+        }
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Start failed: " + output);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+#!/bin/bash
+# Record a real yt-dlp transcript for OutputParsingBenchmark, once with yt-dlp's own progress lines and once
+# with the progress template the app uses (ProgressParser.TEMPLATE, keep both in sync):
+#   src/jmh/record-transcript.sh <name> <url> [format]
+# writes src/test/resources/transcripts/<name>.txt and <name>-template.txt, benchmark them with
+#   mvn -Pbench verify -Djmh.includes=OutputParsingBenchmark -Djmh.transcripts=<name>
+set -euo pipefail
+
+name="$1"
+url="$2"
+format="${3:-bestvideo[height<=1080]+bestaudio/best[height<=1080]}"
+out="$(dirname "$0")/../test/resources/transcripts"
+work="$(mktemp -d)"
+trap 'rm -rf "$work"' EXIT
+
+template='download:[videodl-progress] %(progress.status)s %(progress.downloaded_bytes)s %(progress.total_bytes)s %(progress.total_bytes_estimate)s %(progress.speed)s %(progress.eta)s %(progress.fragment_index)s %(progress.fragment_count)s'
+
+# Same options as DownloadService, a fresh download each time
+run() {
+    yt-dlp -f "$format" --no-playlist --no-continue --force-overwrites --newline --no-quiet --no-simulate \
+        -P "home:$work" -o "%(id)s.%(ext)s" \
+        --print "before_dl:[videodl] id=%(id)s" --print "before_dl:[videodl] title=%(title)s" \
+        --print "after_move:[videodl] file=%(filepath)s" "$@" "$url" 2>&1
+}
+
+run > "$out/$name.txt"
+rm -rf "${work:?}"/*
+run --progress-template "$template" > "$out/$name-template.txt"
+echo "Recorded $(wc -l < "$out/$name.txt") and $(wc -l < "$out/$name-template.txt") lines"
@@ -0,0 +1,38 @@
+package dev.dreiling.videodl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+public class AppConfig {
+
+    private static final Properties properties = load();
+
+    private static Properties load() {
+        Properties props = new Properties();
+        try (InputStream in = AppConfig.class.getResourceAsStream("/application.properties")) {
+            if (in != null) {
+                props.load(in);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Failed to read application.properties: " + e.getMessage());
+        }
+        return props;
+    }
+
+    // System properties (-Dkey=value) override the bundled application.properties
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key, properties.getProperty(key));
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package dev.dreiling.videodl;
+
+import java.io.*;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BinaryCache {
+
+    private static final File CACHE_DIR = new File(Utils.getAppDataDir(), "bin");
+    private static final Map<String, File> resolved = new ConcurrentHashMap<>();
+
+    // Returns the cached copy of a bundled executable, extracting it only if no valid copy exists yet.
+    // videodl.yt-dlp / videodl.ffmpeg point to an installed binary instead (e.g. on Linux)
+    public static File get(String exeName) throws IOException {
+        String override = AppConfig.getString("videodl." + exeName.replace(".exe", ""), null);
+        if (override != null) {
+            File installed = new File(override);
+            if (!installed.isFile()) {
+                throw new IOException("Executable not found: " + installed.getAbsolutePath());
+            }
+            return installed;
+        }
+
+        File cached = resolved.get(exeName);
+        if (cached != null && cached.isFile()) {
+            return cached;
+        }
+
+        synchronized (BinaryCache.class) {
+            cached = resolved.get(exeName);
+            if (cached != null && cached.isFile()) {
+                return cached;
+            }
+            cached = resolve(exeName);
+            resolved.put(exeName, cached);
+            return cached;
+        }
+    }
+
+    private static File resolve(String exeName) throws IOException {
+        String resourcePath = "/bin/" + exeName;
+
+        // Digest of the bundled resource, hashed only once per build of the jar
+        ResourceDigest digest = bundledDigest(exeName, resourcePath);
+
+        // Cache entries live in a folder named after the content hash, so new versions never clash
+        File dir = new File(CACHE_DIR, digest.sha256);
+        File target = new File(dir, exeName);
+
+        // A copy that matched the digest is reused while it is unchanged since (size and modification time),
+        // else it is hashed again and extracted anew if it doesn't match anymore
+        if (target.isFile() && (isVerified(target) || verify(target, digest))) {
+            target.setExecutable(true);
+            return target;
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create binary cache: " + dir.getAbsolutePath());
+        }
+
+        // Extract to a temp file in the same folder, check what was written and move it into place atomically
+        File tempFile = File.createTempFile(exeName, ".tmp", dir);
+        try {
+            MessageDigest sha256 = sha256();
+            try (InputStream in = new DigestInputStream(open(resourcePath), sha256)) {
+                Files.copy(in, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (!HexFormat.of().formatHex(sha256.digest()).equals(digest.sha256) || tempFile.length() != digest.size) {
+                throw new IOException("Extracted " + exeName + " doesn't match the bundled executable");
+            }
+            try {
+                Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException | FileAlreadyExistsException e) {
+                Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+
+        // Make sure it is executable (Windows normally doesn't need this, but no harm)
+        target.setExecutable(true);
+        markVerified(target);
+
+        removeStaleVersions(exeName, dir);
+        return target;
+    }
+
+    // The digest is kept in <exe>.sha256 of the cache folder together with the size and modification time
+    // of the jar it was computed from, the resource is only read and hashed again when the jar changed
+    private static ResourceDigest bundledDigest(String exeName, String resourcePath) throws IOException {
+        String source = sourceKey(resourcePath);
+        File file = new File(CACHE_DIR, exeName + ".sha256");
+
+        Properties properties = new Properties();
+        if (source != null && file.isFile()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+                if (source.equals(properties.getProperty("source"))) {
+                    return new ResourceDigest(properties.getProperty("sha256"), Long.parseLong(properties.getProperty("size")));
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                // unreadable, hashed again below
+            }
+        }
+
+        ResourceDigest digest = digest(resourcePath);
+        if (source != null) {
+            properties.clear();
+            properties.setProperty("source", source);
+            properties.setProperty("sha256", digest.sha256);
+            properties.setProperty("size", String.valueOf(digest.size));
+            store(properties, file);
+        }
+        return digest;
+    }
+
+    // Jar (or classes folder while developing) the resource is loaded from, with its size and modification time.
+    // Null if it can't be told, the resource is hashed every time then.
+    private static String sourceKey(String resourcePath) {
+        URL url = BinaryCache.class.getResource(resourcePath);
+        if (url == null) return null;
+        try {
+            File source;
+            if (url.openConnection() instanceof JarURLConnection jar) {
+                source = new File(jar.getJarFileURL().toURI());
+            }
+            else if (url.getProtocol().equals("file")) {
+                source = new File(url.toURI());
+            }
+            else {
+                return null;
+            }
+            return source.getAbsolutePath() + "|" + source.length() + "|" + source.lastModified();
+        }
+        catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // <exe>.verified next to the copy records its size and modification time at the last verification
+    private static boolean isVerified(File target) {
+        File stamp = new File(target.getParentFile(), target.getName() + ".verified");
+        try {
+            return Files.readString(stamp.toPath()).trim().equals(target.length() + " " + target.lastModified());
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void markVerified(File target) {
+        File stamp = new File(target.getParentFile(), target.getName() + ".verified");
+        try {
+            Files.writeString(stamp.toPath(), target.length() + " " + target.lastModified());
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write " + stamp.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    // Hash a cached copy that changed since it was verified, or whose stamp is missing
+    private static boolean verify(File target, ResourceDigest digest) throws IOException {
+        if (target.length() != digest.size) return false;
+
+        MessageDigest sha256 = sha256();
+        try (InputStream in = new DigestInputStream(new FileInputStream(target), sha256)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        if (!HexFormat.of().formatHex(sha256.digest()).equals(digest.sha256)) return false;
+
+        markVerified(target);
+        return true;
+    }
+
+    private static void store(Properties properties, File file) {
+        if (!CACHE_DIR.isDirectory()) {
+            CACHE_DIR.mkdirs();
+        }
+
+        // Write a temp file first, a crash while saving never leaves a broken digest behind
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            properties.store(writer, "VideoDL bundled executable");
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write " + file.getAbsolutePath() + ": " + e.getMessage());
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            temp.renameTo(file);
+        }
+    }
+
+    // Delete older cached versions of the same executable
+    private static void removeStaleVersions(String exeName, File current) {
+        File[] versions = CACHE_DIR.listFiles(File::isDirectory);
+        if (versions == null) return;
+
+        for (File version : versions) {
+            if (version.equals(current)) continue;
+
+            // Deleting fails while another instance still runs that version, it is retried next time
+            new File(version, exeName).delete();
+            new File(version, exeName + ".verified").delete();
+            version.delete(); // only succeeds once the folder is empty
+        }
+    }
+
+    private static ResourceDigest digest(String resourcePath) throws IOException {
+        MessageDigest sha256 = sha256();
+
+        long size = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = open(resourcePath)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                sha256.update(buffer, 0, read);
+                size += read;
+            }
+        }
+        return new ResourceDigest(HexFormat.of().formatHex(sha256.digest()), size);
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+    }
+
+    private static InputStream open(String resourcePath) throws IOException {
+        InputStream in = BinaryCache.class.getResourceAsStream(resourcePath);
+        if (in == null) {
+            throw new IOException("Resource not found: " + resourcePath);
+        }
+        return in;
+    }
+
+    private record ResourceDigest(String sha256, long size) {}
+}
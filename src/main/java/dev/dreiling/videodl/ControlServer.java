@@ -0,0 +1,426 @@
+package dev.dreiling.videodl;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Local HTTP/JSON API:
+//   POST   /api/jobs              {"urls": [...], "quality": "720p", "outputDir": "...", "downloadAgain": false}
+//                                  -> queued jobs
+//   GET    /api/jobs              all jobs
+//   GET    /api/jobs/{id}         one job with its playlist entries
+//   GET    /api/jobs/{id}/events  progress as Server-Sent Events until the job is done
+//   POST   /api/jobs/{id}/pause   pause, DELETE /api/jobs/{id} cancels
+//   POST   /api/jobs/{id}/resume  queue a paused job again -> the new job
+//   GET    /metrics               download metrics in the Prometheus text format
+// Every request needs "Authorization: Bearer <token>" with the token of this session from TOKEN_FILE,
+// and a localhost Host header. Browser requests from other origins are rejected.
+public final class ControlServer implements DownloadListener {
+
+    static final File TOKEN_FILE = new File(Utils.getAppDataDir(), "control-token");
+
+    private static final long EVENT_INTERVAL_MS = 250;
+    private static final int MAX_KEPT_JOBS = 1000;
+
+    private final DownloadQueue queue;
+    private final ProgressAggregator aggregator;
+    private final File defaultOutputDir;
+    private final String token;
+    private final HttpServer server;
+    private final ScheduledExecutorService pulse;
+    private final Map<Long, JobUpdate> updates = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    // Latest progress per job as published by the aggregator
+    private record JobUpdate(ProgressEvent event, String status, long version) {}
+
+    public ControlServer(int port, int parallelDownloads, String defaultOutputDir) throws IOException {
+        // Progress is coalesced like in the window and published a few times per second
+        this.aggregator = new ProgressAggregator(this);
+        this.queue = new DownloadQueue(parallelDownloads, aggregator);
+        this.defaultOutputDir = new File(defaultOutputDir).getAbsoluteFile();
+        this.token = writeToken();
+        this.pulse = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "control-pulse");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Bound to localhost only, requests are handled on virtual threads
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/api/jobs", this::handleJobs);
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    public void start() {
+        pulse.scheduleAtFixedRate(aggregator::drain, EVENT_INTERVAL_MS, EVENT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        server.start();
+    }
+
+    // Stop accepting requests, unfinished jobs are paused so they can be resumed
+    public void stop() {
+        server.stop(0);
+        pulse.shutdownNow();
+        queue.shutdown();
+
+        // Another server may have started since and written its own token
+        try {
+            if (token.equals(Files.readString(TOKEN_FILE.toPath()).trim())) {
+                TOKEN_FILE.delete();
+            }
+        }
+        catch (IOException ignored) {}
+    }
+
+    public DownloadQueue getQueue() {
+        return queue;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // New random token per session. The temp file is created readable by the current user only (POSIX),
+    // on Windows the app data folder already is per user.
+    private static String writeToken() throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+
+        File dir = TOKEN_FILE.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        Path temp = Files.createTempFile(dir.toPath(), "control-token", ".tmp");
+        Files.writeString(temp, token);
+        Files.move(temp, TOKEN_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return token;
+    }
+
+    @Override
+    public void onProgress(DownloadJob job, ProgressEvent event) {
+        updates.compute(job.getId(), (id, previous) ->
+                new JobUpdate(event, null, version.incrementAndGet()));
+    }
+
+    @Override
+    public void onStatus(DownloadJob job, String status) {
+        updates.compute(job.getId(), (id, previous) ->
+                new JobUpdate(previous == null ? null : previous.event, status, version.incrementAndGet()));
+    }
+
+    @Override
+    public void onFinished(DownloadJob job) {
+        updates.compute(job.getId(), (id, previous) ->
+                new JobUpdate(previous == null ? null : previous.event, null, version.incrementAndGet()));
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!authorize(exchange)) return;
+            try {
+                route(exchange);
+            }
+            catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+            }
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!authorize(exchange)) return;
+            if (!exchange.getRequestURI().getPath().replaceAll("/+$", "").equals("/metrics")) {
+                send(exchange, 404, error("Unknown endpoint"));
+                return;
+            }
+            byte[] body = Metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    // A web page can't use the API: DNS rebinding sends a foreign Host, a cross-site request a foreign Origin,
+    // and neither can read the token
+    private boolean authorize(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        if (!isLoopbackHost(headers.getFirst("Host"))) {
+            send(exchange, 403, error("Host not allowed"));
+            return false;
+        }
+        String origin = headers.getFirst("Origin");
+        if (origin != null && !isLoopbackOrigin(origin)) {
+            send(exchange, 403, error("Origin not allowed"));
+            return false;
+        }
+        String authorization = headers.getFirst("Authorization");
+        if (authorization == null || !MessageDigest.isEqual(authorization.getBytes(StandardCharsets.UTF_8),
+                ("Bearer " + token).getBytes(StandardCharsets.UTF_8))) {
+            send(exchange, 401, error("Missing or wrong token, it is in " + TOKEN_FILE.getAbsolutePath()));
+            return false;
+        }
+        return true;
+    }
+
+    // "localhost", "127.0.0.1" or "[::1]", with or without port
+    static boolean isLoopbackHost(String host) {
+        if (host == null) return false;
+        String name = host.startsWith("[") ? host.substring(0, host.indexOf(']') + 1) : host.replaceFirst(":\\d+$", "");
+        return name.equalsIgnoreCase("localhost") || name.equals("127.0.0.1") || name.equals("[::1]");
+    }
+
+    // http(s)://localhost:port and the like, "null" (sandboxed pages, files) isn't
+    static boolean isLoopbackOrigin(String origin) {
+        try {
+            URI uri = new URI(origin);
+            return ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) && isLoopbackHost(uri.getHost());
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+        // path: "", "api", "jobs", [id], [action]
+
+        // The context matches by prefix, e.g. /api/jobsXYZ isn't the job list
+        if (path.length < 3 || !path[2].equals("jobs") || path.length > 5) {
+            send(exchange, 404, error("Unknown endpoint"));
+            return;
+        }
+        if (path.length == 3) {
+            if (method.equals("POST")) submit(exchange);
+            else if (method.equals("GET")) send(exchange, 200, jobsJson(queue.getJobs(), false));
+            else send(exchange, 405, error("Method not allowed"));
+            return;
+        }
+
+        DownloadJob job = findJob(path[3]);
+        if (job == null) {
+            send(exchange, 404, error("Unknown job: " + path[3]));
+            return;
+        }
+
+        String action = path.length > 4 ? path[4] : "";
+        switch (method + " " + action) {
+            case "GET " -> send(exchange, 200, jobJson(job, true));
+            case "GET events" -> streamEvents(exchange, job);
+            case "POST pause" -> {
+                job.pause();
+                send(exchange, 202, jobJson(job, false));
+            }
+            case "POST resume" -> {
+                List<DownloadJob> resumed = queue.resume(List.of(job));
+                if (resumed.isEmpty()) send(exchange, 409, error("Job is not paused"));
+                else send(exchange, 202, jobJson(resumed.get(0), false));
+            }
+            case "DELETE ", "POST cancel" -> {
+                job.cancel();
+                send(exchange, 202, jobJson(job, false));
+            }
+            default -> send(exchange, 404, error("Unknown endpoint"));
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        // A form or a no-cors fetch can't send JSON, so this also keeps out simple cross-site requests
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.split(";")[0].trim().equalsIgnoreCase("application/json")) {
+            send(exchange, 415, error("Content-Type must be application/json"));
+            return;
+        }
+
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        Map<String, Object> request = Json.parseObject(body);
+
+        List<String> urls = new ArrayList<>();
+        if (request.get("urls") instanceof List<?> list) {
+            for (Object url : list) urls.add(String.valueOf(url));
+        }
+        if (request.get("url") instanceof String url) {
+            urls.add(url);
+        }
+        if (urls.isEmpty() || !urls.stream().allMatch(Utils::isValidUrl)) {
+            throw new IllegalArgumentException("urls must contain valid http(s) URLs");
+        }
+
+        String quality = request.get("quality") instanceof String q ? q : "360p";
+        File outputDir = resolveOutputDir(request.get("outputDir"));
+
+        // Forget old finished jobs so a long running server doesn't grow
+        if (queue.getJobs().size() > MAX_KEPT_JOBS) {
+            queue.removeFinished();
+            updates.keySet().removeIf(id -> queue.findJob(id) == null);
+        }
+
+        boolean downloadAgain = Boolean.TRUE.equals(request.get("downloadAgain"));
+        List<DownloadJob> jobs = queue.submit(urls, quality, outputDir.getAbsolutePath(), downloadAgain);
+        send(exchange, 202, jobsJson(jobs, false));
+    }
+
+    // Downloads only go to the folder the server was started with or a folder in it,
+    // relative paths are resolved against it. Links are followed before comparing.
+    private File resolveOutputDir(Object requested) throws IOException {
+        if (!(requested instanceof String dir)) return defaultOutputDir;
+
+        File folder = new File(dir);
+        if (!folder.isAbsolute()) {
+            folder = new File(defaultOutputDir, dir);
+        }
+        if (!folder.isDirectory()) {
+            throw new IllegalArgumentException("Output folder not found: " + dir);
+        }
+        Path real = folder.toPath().toRealPath();
+        if (!real.startsWith(defaultOutputDir.toPath().toRealPath())) {
+            throw new IllegalArgumentException("outputDir must be " + defaultOutputDir + " or a folder in it");
+        }
+        return real.toFile();
+    }
+
+    // Server-Sent Events: a "progress" event whenever the job changes, "finished" at the end
+    private void streamEvents(HttpExchange exchange, DownloadJob job) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+
+        OutputStream out = exchange.getResponseBody();
+        long lastVersion = -1;
+        try {
+            while (true) {
+                boolean done = job.isDone();
+                long current = latestVersion(job);
+                if (current != lastVersion || done) {
+                    lastVersion = current;
+                    String event = "event: " + (done ? "finished" : "progress") + "\n"
+                            + "data: " + jobJson(job, false) + "\n\n";
+                    out.write(event.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+                if (done) return;
+                Thread.sleep(EVENT_INTERVAL_MS);
+            }
+        }
+        catch (InterruptedException ignored) {}
+        catch (IOException e) {
+            // client disconnected
+        }
+    }
+
+    // Newest update of the job or of any of its playlist entries
+    private long latestVersion(DownloadJob job) {
+        long latest = 0;
+        JobUpdate update = updates.get(job.getId());
+        if (update != null) latest = update.version;
+        for (DownloadJob child : job.getChildren()) {
+            JobUpdate childUpdate = updates.get(child.getId());
+            if (childUpdate != null) latest = Math.max(latest, childUpdate.version);
+        }
+        return latest;
+    }
+
+    private DownloadJob findJob(String id) {
+        try {
+            return queue.findJob(Long.parseLong(id));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private String jobsJson(List<DownloadJob> jobs, boolean withEntries) {
+        StringBuilder json = new StringBuilder("{\"jobs\":[");
+        for (int i = 0; i < jobs.size(); i++) {
+            if (i > 0) json.append(',');
+            json.append(jobJson(jobs.get(i), withEntries));
+        }
+        return json.append("]}").toString();
+    }
+
+    private String jobJson(DownloadJob job, boolean withEntries) {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"id\":").append(job.getId());
+        json.append(",\"url\":").append(Json.quote(job.getUrl()));
+        json.append(",\"quality\":").append(Json.quote(job.getQuality()));
+        json.append(",\"state\":").append(Json.quote(job.getState().name()));
+        json.append(",\"progress\":").append(job.getProgress());
+        json.append(",\"message\":").append(Json.quote(job.getMessage()));
+        json.append(",\"retries\":").append(job.getRetries());
+        if (job.getState() == DownloadJob.State.FAILED) {
+            json.append(",\"failureReason\":").append(Json.quote(FailureReason.classify(job.getMessage()).label()));
+        }
+        json.append(",\"timingsMs\":{");
+        for (Metrics.Stage stage : Metrics.Stage.values()) {
+            if (stage.ordinal() > 0) json.append(',');
+            json.append(Json.quote(stage.label())).append(':').append(job.getStageNanos(stage) / 1_000_000);
+        }
+        json.append("},\"bytes\":").append(job.getBytes());
+
+        JobUpdate update = updates.get(job.getId());
+        if (update != null && update.event != null) {
+            ProgressEvent event = update.event;
+            json.append(",\"phase\":").append(Json.quote(event.getPhase().name()));
+            json.append(",\"downloadedBytes\":").append(event.getDownloadedBytes());
+            json.append(",\"totalBytes\":").append(event.getTotalBytes());
+            json.append(",\"speed\":").append(event.getSpeed());
+            json.append(",\"eta\":").append(event.getEta());
+            if (event.getFragmentCount() > 0) {
+                json.append(",\"fragmentsDone\":").append(Math.max(0, event.getFragmentIndex()));
+                json.append(",\"fragmentCount\":").append(event.getFragmentCount());
+                json.append(",\"fragmentsInFlight\":").append(event.getFragmentsInFlight());
+            }
+            json.append(",\"status\":").append(Json.quote(update.status != null ? update.status : event.describe()));
+        }
+
+        List<DownloadJob> children = job.getChildren();
+        if (!children.isEmpty()) {
+            json.append(",\"entries\":");
+            if (withEntries) {
+                json.append('[');
+                for (int i = 0; i < children.size(); i++) {
+                    if (i > 0) json.append(',');
+                    json.append(jobJson(children.get(i), false));
+                }
+                json.append(']');
+            }
+            else {
+                json.append(children.size());
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + Json.quote(message) + "}";
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
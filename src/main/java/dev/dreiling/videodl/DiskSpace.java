@@ -0,0 +1,109 @@
+package dev.dreiling.videodl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class DiskSpace {
+
+    // Always left free on a drive, the system and other programs need some too
+    private static final long MIN_FREE = Math.max(0, Utils.parseBytes(AppConfig.getString("videodl.min-free-space", "512M")));
+
+    // Waiting jobs also try again after this, for space freed by other programs
+    private static final long RECHECK_MS = 2000;
+
+    private static final Map<FileStore, Long> reserved = new HashMap<>();
+    private static final Map<DownloadJob, Map<FileStore, Long>> reservations = new HashMap<>();
+    private static final Map<DownloadJob, Long> shortOf = new HashMap<>();
+    private static final List<Runnable> waiting = new ArrayList<>();
+    private static long releases = 0;
+    private static boolean recheckPending = false;
+
+    // Admit a job once the drives have room for what it is about to write (bytes per folder, -1 if unknown)
+    // and reserve that space until release(). Space reserved by running downloads counts as used even while
+    // they are still writing it, so the check is on the safe side. Never blocks: returns null once reserved,
+    // otherwise what is missing while other downloads hold reservations. The caller then gives up its slots and
+    // calls await(). Throws if the space isn't there even without them, since the job would only fail late,
+    // after the download.
+    public static String tryReserve(DownloadJob job, Map<File, Long> needed) throws IOException {
+        Map<FileStore, Long> stores = new HashMap<>();
+        for (Map.Entry<File, Long> entry : needed.entrySet()) {
+            stores.merge(Files.getFileStore(entry.getKey().toPath()), Math.max(0, entry.getValue()), Long::sum);
+        }
+
+        synchronized (DiskSpace.class) {
+            for (Map.Entry<FileStore, Long> entry : stores.entrySet()) {
+                long held = reserved.getOrDefault(entry.getKey(), 0L);
+                long free = entry.getKey().getUsableSpace() - MIN_FREE - held;
+                if (free < entry.getValue()) {
+                    String shortage = "needs " + ProgressEvent.formatBytes(entry.getValue()) + " on " + entry.getKey()
+                            + ", " + ProgressEvent.formatBytes(Math.max(0, free)) + " free";
+                    if (held == 0) {
+                        throw new IOException("Not enough space for this download: " + shortage);
+                    }
+                    shortOf.put(job, releases);
+                    return shortage;
+                }
+            }
+
+            for (Map.Entry<FileStore, Long> entry : stores.entrySet()) {
+                reserved.merge(entry.getKey(), entry.getValue(), Long::sum);
+            }
+            reservations.put(job, stores);
+            return null;
+        }
+    }
+
+    // Run retry once another download has released its space, right away if one did since tryReserve() came up
+    // short. Also after RECHECK_MS at the latest. Retries of cancelled jobs run as well, they finish on their own.
+    public static void await(DownloadJob job, Runnable retry) {
+        synchronized (DiskSpace.class) {
+            Long seen = shortOf.remove(job);
+            if (seen != null && seen == releases) {
+                waiting.add(retry);
+                if (!recheckPending) {
+                    recheckPending = true;
+                    CompletableFuture.delayedExecutor(RECHECK_MS, TimeUnit.MILLISECONDS).execute(DiskSpace::wakeAll);
+                }
+                return;
+            }
+        }
+        retry.run();
+    }
+
+    // The job has finished writing, or won't anymore
+    public static void release(DownloadJob job) {
+        synchronized (DiskSpace.class) {
+            Map<FileStore, Long> stores = reservations.remove(job);
+            if (stores == null) return;
+
+            for (Map.Entry<FileStore, Long> entry : stores.entrySet()) {
+                long left = reserved.getOrDefault(entry.getKey(), 0L) - entry.getValue();
+                if (left > 0) reserved.put(entry.getKey(), left);
+                else reserved.remove(entry.getKey());
+            }
+            releases++;
+        }
+        wakeAll();
+    }
+
+    // Every waiting job tries again, the ones that still don't fit wait anew
+    private static void wakeAll() {
+        List<Runnable> ready;
+        synchronized (DiskSpace.class) {
+            recheckPending = false;
+            ready = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (Runnable retry : ready) {
+            retry.run();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package dev.dreiling.videodl;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DownloadJob {
+
+    public enum State { QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED, SKIPPED, PAUSED }
+
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    private final long id;
+    private final String url;
+    private final String quality;
+    private final String outputDir;
+    private final DownloadJob parent;
+    private final List<DownloadJob> children = new CopyOnWriteArrayList<>();
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Metrics.Stage.values().length);
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicReference<Runnable> wakeUp = new AtomicReference<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Set<File> partialFiles = ConcurrentHashMap.newKeySet();
+
+    private volatile State state = State.QUEUED;
+    private volatile Process process;
+    private volatile boolean cancelled = false;
+    private volatile boolean paused = false;
+    private volatile JobManifest manifest;
+    private volatile long rateLimit = 0;
+    private volatile int concurrentFragments = 0;
+    private volatile boolean downloadAgain = false;
+    private volatile boolean singleVideo = false;
+    private volatile FormatSelector.Selection selection;
+    private volatile int retries = 0;
+    private volatile long queuedNanos = System.nanoTime();
+    private volatile double progress = 0;
+    private volatile String message = "Queued";
+    private volatile String title = "Unknown";
+
+    public DownloadJob(String url, String quality, String outputDir) {
+        this(url, quality, outputDir, null);
+    }
+
+    // Entry of an expanded playlist or channel
+    public DownloadJob(String url, String quality, String outputDir, DownloadJob parent) {
+        this.id = nextId.getAndIncrement();
+        this.url = url;
+        this.quality = quality;
+        this.outputDir = outputDir;
+        this.parent = parent;
+    }
+
+    // Cancellation token: flags the job and stops its process with everything the process started,
+    // a job waiting outside the queue is woken up to finish. Entries are cancelled too.
+    public void cancel() {
+        cancelled = true;
+        Process p = process;
+        if (p != null) {
+            Utils.destroyTree(p, false);
+        }
+        wake();
+        for (DownloadJob child : children) {
+            child.cancel();
+        }
+    }
+
+    // Stop like cancel() but keep partial files, so the job can continue later
+    public void pause() {
+        paused = true;
+        for (DownloadJob child : children) {
+            child.pause();
+        }
+        cancel();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return state == State.COMPLETED || state == State.FAILED || state == State.CANCELLED || state == State.SKIPPED
+                || state == State.PAUSED;
+    }
+
+    // Attach the running process, stopping it right away if the job was cancelled in the meantime
+    void attachProcess(Process process) {
+        this.process = process;
+        if (cancelled) {
+            Utils.destroyTree(process, false);
+        }
+    }
+
+    // Runs once if the job is cancelled while it waits for a host or a retry, null once it runs again
+    void setWakeUp(Runnable action) {
+        wakeUp.set(action);
+        if (cancelled) wake();
+    }
+
+    private void wake() {
+        Runnable action = wakeUp.getAndSet(null);
+        if (action != null) action.run();
+    }
+
+    // Files yt-dlp has started for this job, removed again if it is cancelled
+    void addPartialFile(File file) {
+        partialFiles.add(file);
+    }
+
+    List<File> takePartialFiles() {
+        List<File> files = List.copyOf(partialFiles);
+        partialFiles.removeAll(files);
+        return files;
+    }
+
+    void addChild(DownloadJob child) {
+        children.add(child);
+        if (paused) {
+            child.pause();
+        }
+        else if (cancelled) {
+            child.cancel();
+        }
+    }
+
+    public DownloadJob getParent() {
+        return parent;
+    }
+
+    // The job that was submitted, i.e. the playlist for an entry
+    public DownloadJob getRoot() {
+        return parent == null ? this : parent.getRoot();
+    }
+
+    public List<DownloadJob> getChildren() {
+        return List.copyOf(children);
+    }
+
+    // Single downloads, for a playlist these are its entries
+    public List<DownloadJob> getLeaves() {
+        return children.isEmpty() ? List.of(this) : List.copyOf(children);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getQuality() {
+        return quality;
+    }
+
+    public String getOutputDir() {
+        return outputDir;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    // Progress between 0 and 1, for a playlist the average over its entries
+    public double getProgress() {
+        if (children.isEmpty()) {
+            return state == State.COMPLETED || state == State.SKIPPED ? 1.0 : progress;
+        }
+
+        double total = 0;
+        for (DownloadJob child : children) {
+            total += child.getProgress();
+        }
+        return total / children.size();
+    }
+
+    void setProgress(double progress) {
+        this.progress = progress;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    void setMessage(String message) {
+        this.message = message;
+    }
+
+    // Sanitized title as printed by yt-dlp, "Unknown" until then
+    public String getTitle() {
+        return title;
+    }
+
+    void setTitle(String title) {
+        this.title = title;
+    }
+
+    // Bandwidth share in bytes/s passed to yt-dlp, 0 for unlimited
+    public long getRateLimit() {
+        return rateLimit;
+    }
+
+    void setRateLimit(long rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    // Fragments of HLS/DASH streams fetched in parallel, 0 to use the configured value for the host
+    public int getConcurrentFragments() {
+        return concurrentFragments;
+    }
+
+    void setConcurrentFragments(int concurrentFragments) {
+        this.concurrentFragments = concurrentFragments;
+    }
+
+    // Download even if the history has the video as downloaded already
+    public boolean isDownloadAgain() {
+        return downloadAgain;
+    }
+
+    void setDownloadAgain(boolean downloadAgain) {
+        this.downloadAgain = downloadAgain;
+    }
+
+    // Not expanded as a playlist, its URL was found to be a single video
+    boolean isSingleVideo() {
+        return singleVideo;
+    }
+
+    void setSingleVideo(boolean singleVideo) {
+        this.singleVideo = singleVideo;
+    }
+
+    // Formats picked by the first attempt, retries and resumes continue the same streams. Null until then.
+    FormatSelector.Selection getSelection() {
+        return selection;
+    }
+
+    void setSelection(FormatSelector.Selection selection) {
+        this.selection = selection;
+    }
+
+    // Time spent per stage, summed over retries
+    public long getStageNanos(Metrics.Stage stage) {
+        return stageNanos.get(stage.ordinal());
+    }
+
+    void addStageNanos(Metrics.Stage stage, long nanos) {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    void addBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+    // Automatic retries after transient failures so far
+    public int getRetries() {
+        return retries;
+    }
+
+    // Count a retry, the time waiting for it is measured as queue wait again
+    int nextRetry() {
+        requeue();
+        return ++retries;
+    }
+
+    // Back in the queue without a failed attempt, e.g. to wait for disk space
+    void requeue() {
+        queuedNanos = System.nanoTime();
+    }
+
+    // True the first time the job gets a download slot, not again for retries or after waiting for disk space
+    boolean markStarted() {
+        return started.compareAndSet(false, true);
+    }
+
+    // Submitted or last put back into the queue
+    long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    // Manifest of a submitted job, null for playlist entries
+    JobManifest getManifest() {
+        return manifest;
+    }
+
+    void setManifest(JobManifest manifest) {
+        this.manifest = manifest;
+    }
+}
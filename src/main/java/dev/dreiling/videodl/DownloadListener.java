@@ -0,0 +1,13 @@
+package dev.dreiling.videodl;
+
+public interface DownloadListener {
+
+    // Progress of a running job, the event is reused for the next line so keep a copy() if needed later
+    void onProgress(DownloadJob job, ProgressEvent event);
+
+    // Latest status line of a running job
+    void onStatus(DownloadJob job, String status);
+
+    // Job reached COMPLETED, FAILED, CANCELLED or SKIPPED, details are in job.getMessage()
+    void onFinished(DownloadJob job);
+}
@@ -0,0 +1,37 @@
+package dev.dreiling.videodl;
+
+import java.util.Map;
+
+// Aggregate download metrics, registered as dev.dreiling.videodl:type=Downloads (e.g. for JConsole)
+public interface DownloadMetricsMXBean {
+
+    long getJobsStarted();
+
+    long getJobsCompleted();
+
+    long getJobsFailed();
+
+    long getJobsCancelled();
+
+    long getJobsSkipped();
+
+    long getRetries();
+
+    long getBytesDownloaded();
+
+    // Bytes downloaded divided by the time spent in the download stage
+    double getAverageBytesPerSecond();
+
+    long getMetadataCacheHits();
+
+    long getMetadataCacheMisses();
+
+    // Per stage (queue_wait, extract, spawn, download, merge): count, total and max in milliseconds
+    Map<String, Long> getStageCounts();
+
+    Map<String, Long> getStageTotalMillis();
+
+    Map<String, Long> getStageMaxMillis();
+
+    Map<String, Long> getFailuresByReason();
+}
@@ -0,0 +1,462 @@
+package dev.dreiling.videodl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class DownloadQueue {
+
+    private final ExecutorService executor;
+    private final DownloadListener listener;
+    private final HostScheduler scheduler;
+    private final List<DownloadJob> jobs = new CopyOnWriteArrayList<>();
+    private volatile int concurrentFragments = 0;
+    private final boolean skipDownloaded = Boolean.parseBoolean(AppConfig.getString("videodl.skip-downloaded", "true"));
+
+    // Automatic retries of transient and rate limited failures
+    private final int maxRetries = AppConfig.getInt("videodl.max-retries", 3);
+    private final long retryDelayMs = AppConfig.getInt("videodl.retry-delay-seconds", 2) * 1000L;
+    private final long maxRetryDelayMs = AppConfig.getInt("videodl.retry-max-delay-seconds", 60) * 1000L;
+    private final long cooldownMs = AppConfig.getInt("videodl.rate-limit-cooldown-seconds", 60) * 1000L;
+
+    // Queue running up to the configured number of downloads in parallel on virtual threads
+    public DownloadQueue(DownloadListener listener) {
+        this(AppConfig.getInt("videodl.parallel-downloads", 3), listener);
+    }
+
+    public DownloadQueue(int parallelDownloads, DownloadListener listener) {
+        this(Executors.newFixedThreadPool(Math.max(1, parallelDownloads),
+                Thread.ofVirtual().name("download-", 1).factory()), new HostScheduler(parallelDownloads), listener);
+    }
+
+    public DownloadQueue(ExecutorService executor, HostScheduler scheduler, DownloadListener listener) {
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    public List<DownloadJob> submit(List<String> urls, String quality, String outputDir) {
+        return submit(urls, quality, outputDir, false);
+    }
+
+    // downloadAgain: also videos the history has as downloaded, e.g. after their file was deleted
+    public List<DownloadJob> submit(List<String> urls, String quality, String outputDir, boolean downloadAgain) {
+        List<DownloadJob> submitted = new ArrayList<>();
+        for (String url : urls) {
+            submitted.add(submit(url, quality, outputDir, downloadAgain));
+        }
+        return submitted;
+    }
+
+    public DownloadJob submit(String url, String quality, String outputDir) {
+        return submit(url, quality, outputDir, false);
+    }
+
+    // The job gets a manifest right away, so it survives an app restart even while still queued
+    public DownloadJob submit(String url, String quality, String outputDir, boolean downloadAgain) {
+        DownloadJob job = new DownloadJob(url, quality, outputDir);
+        job.setConcurrentFragments(concurrentFragments);
+        job.setDownloadAgain(downloadAgain);
+        return enqueue(job, JobManifest.create(job));
+    }
+
+    // Submit the job of a manifest again, it keeps that manifest
+    private DownloadJob submit(JobManifest manifest) {
+        DownloadJob job = new DownloadJob(manifest.getUrl(), manifest.getQuality(), manifest.getOutputDir());
+        job.setConcurrentFragments(concurrentFragments);
+        job.setDownloadAgain(manifest.isDownloadAgain());
+        job.setSelection(manifest.getSelection());
+        return enqueue(job, JobManifest.restore(job, manifest));
+    }
+
+    private DownloadJob enqueue(DownloadJob job, JobManifest manifest) {
+        job.setManifest(manifest);
+        jobs.add(job);
+        schedule(job);
+        return job;
+    }
+
+    // Queue the jobs that were unfinished when the app last stopped, partial files are continued
+    public List<DownloadJob> restoreUnfinished() {
+        List<DownloadJob> restored = new ArrayList<>();
+        for (JobManifest manifest : JobManifest.loadAll()) {
+            if (!new File(manifest.getOutputDir()).isDirectory()) {
+                manifest.delete();
+                continue;
+            }
+            restored.add(submit(manifest));
+        }
+        return restored;
+    }
+
+    // Queue paused jobs again as new jobs, they continue from their partial files. Others are left out.
+    public List<DownloadJob> resume(List<DownloadJob> paused) {
+        List<DownloadJob> resumed = new ArrayList<>();
+        for (DownloadJob job : paused) {
+            JobManifest manifest = job.getManifest();
+            if (job.getState() != DownloadJob.State.PAUSED || manifest == null) continue;
+            jobs.remove(job);
+            resumed.add(submit(manifest));
+        }
+        return resumed;
+    }
+
+    private void run(DownloadJob job) {
+        // Already finished by a wake-up, e.g. cancelled while waiting for its host
+        if (job.isDone()) return;
+        if (job.isCancelled()) {
+            finishStopped(job);
+            return;
+        }
+
+        // Don't start a process for a video that has been downloaded before, unless its file is gone since
+        if (skipDownloaded && !job.isDownloadAgain()) {
+            HistoryStore.Entry previous = HistoryStore.get().find(job.getUrl());
+            if (previous != null && previous.successful() && !previous.isFileMissing()) {
+                finish(job, DownloadJob.State.SKIPPED, "Already downloaded: " + previous.title());
+                return;
+            }
+        }
+
+        // Playlists and channels are split into one job per entry
+        if (job.getParent() == null && !job.isSingleVideo() && PlaylistExpander.isPlaylistUrl(job.getUrl())) {
+            expand(job);
+            return;
+        }
+
+        // Wait without holding a pool thread while the host already has its share of downloads
+        job.setWakeUp(() -> schedule(job));
+        if (!scheduler.tryStart(job, () -> schedule(job))) {
+            String host = Utils.getHost(job.getUrl());
+            long cooldown = scheduler.getCooldown(host);
+            if (cooldown > 0) job.setMessage("Rate limited by " + host + ", waiting " + seconds(cooldown) + "s");
+            else job.setMessage("Waiting for another download from " + host);
+            listener.onStatus(job, job.getMessage());
+            return;
+        }
+        job.setWakeUp(null);
+
+        Metrics.record(job, Metrics.Stage.QUEUE_WAIT, System.nanoTime() - job.getQueuedNanos());
+        if (job.markStarted()) Metrics.jobStarted();
+        job.setState(DownloadJob.State.RUNNING);
+        job.setMessage("Downloading...");
+        job.setRateLimit(scheduler.assignRate(job, countQueued()));
+        prefetchMetadata(job);
+
+        // The host slot and bandwidth share are released before anything else happens to the job,
+        // a retry may already claim new ones while this attempt would still release the old ones
+        DownloadService.Fetched fetched;
+        try {
+            fetched = DownloadService.downloadVideo(job,
+                    event -> {
+                        double progress = event.getProgress();
+                        if (progress >= 0) job.setProgress(progress);
+                        listener.onProgress(job, event);
+                    },
+                    status -> listener.onStatus(job, status)
+            );
+        }
+        catch (Exception e) {
+            scheduler.finished(job);
+            // A cancelled process can also end in an error, e.g. its closed output
+            if (job.isCancelled()) finishStopped(job);
+            else if (!retry(job, e.getMessage())) fail(job, e.getMessage());
+            return;
+        }
+        scheduler.finished(job);
+
+        if (fetched == null) finishStopped(job);
+        else if (fetched == DownloadService.WAITING_FOR_SPACE) waitForSpace(job);
+        else if (fetched.needsMerge()) postProcess(job, fetched);
+        else finish(job, DownloadJob.State.COMPLETED, "Download completed");
+    }
+
+    // Short of disk space that other downloads hold: the job has given its host slot and bandwidth share back
+    // and leaves the pool thread, it is queued again once space is released, like a job waiting for its host
+    private void waitForSpace(DownloadJob job) {
+        job.requeue();
+        job.setState(DownloadJob.State.QUEUED);
+        listener.onStatus(job, job.getMessage());
+        job.setWakeUp(() -> schedule(job));
+        DiskSpace.await(job, () -> schedule(job));
+    }
+
+    // Put a job that failed for a transient reason back into the queue after a jittered exponential backoff.
+    // Its partial files are kept, so the retry continues where the last attempt stopped (--continue).
+    // A 429 cools down the whole host, the job and every other job for the host wait for it in the scheduler.
+    // False if the job has to fail.
+    private boolean retry(DownloadJob job, String error) {
+        FailureReason reason = FailureReason.classify(error);
+        if (reason.kind() == FailureReason.Kind.PERMANENT || job.isCancelled() || job.getRetries() >= maxRetries) {
+            return false;
+        }
+
+        DiskSpace.release(job);
+        int attempt = job.nextRetry();
+        long delay = backoff(attempt);
+        Metrics.retry();
+        job.setState(DownloadJob.State.QUEUED);
+
+        if (reason.kind() == FailureReason.Kind.RATE_LIMITED) {
+            String host = Utils.getHost(job.getUrl());
+            delay = Math.max(delay, cooldownMs);
+            scheduler.coolDown(host, delay);
+            job.setMessage("Rate limited by " + host + ", retry " + attempt + "/" + maxRetries + " in " + seconds(delay) + "s");
+            listener.onStatus(job, job.getMessage());
+            schedule(job);
+        }
+        else {
+            job.setMessage("Download failed (" + reason.label() + "), retry " + attempt + "/" + maxRetries
+                    + " in " + seconds(delay) + "s");
+            listener.onStatus(job, job.getMessage());
+            job.setWakeUp(() -> schedule(job));
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> schedule(job));
+        }
+        LogWriter.logStamped("[" + job.getId() + "] " + job.getMessage() + ": " + error);
+        return true;
+    }
+
+    // Doubles with every retry up to the maximum, randomized in its upper half so failed jobs don't retry in lockstep
+    private long backoff(int attempt) {
+        long delay = retryDelayMs << Math.min(attempt - 1, 20);
+        delay = Math.max(0, Math.min(delay, maxRetryDelayMs));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static long seconds(long millis) {
+        return (millis + 999) / 1000;
+    }
+
+    // Merge on the post-processing executor, the download slot and the host's share are released meanwhile
+    private void postProcess(DownloadJob job, DownloadService.Fetched fetched) {
+        job.setMessage("Merging video and audio...");
+        listener.onStatus(job, job.getMessage());
+
+        PostProcessor.merge(job, fetched).whenComplete((merged, error) -> {
+            if (job.isCancelled()) {
+                // Paused jobs keep their streams, the next run only merges them
+                if (!job.isPaused()) {
+                    Utils.cleanupPartialFiles(fetched.streams(), 0);
+                    Utils.cleanupPartialFiles(job.takePartialFiles(), 0);
+                }
+                finishStopped(job);
+            }
+            else if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                fail(job, cause.getMessage());
+            }
+            else {
+                finish(job, DownloadJob.State.COMPLETED, "Download completed");
+            }
+        });
+    }
+
+    private void schedule(DownloadJob job) {
+        try {
+            executor.execute(() -> run(job));
+        }
+        catch (RejectedExecutionException ignored) {
+            // shutting down, the job's manifest brings it back on the next start
+        }
+    }
+
+    // Downloads waiting to start, they share the bandwidth left over with the next job started
+    private int countQueued() {
+        int queued = 0;
+        for (DownloadJob job : jobs) {
+            for (DownloadJob leaf : job.getLeaves()) {
+                if (leaf.getState() == DownloadJob.State.QUEUED) queued++;
+            }
+        }
+        return queued;
+    }
+
+    // Extract the info of this and the next queued downloads together, see MetadataCache.prefetch
+    private void prefetchMetadata(DownloadJob job) {
+        int batchSize = MetadataCache.getBatchSize();
+        if (batchSize <= 0) return;
+
+        List<String> urls = new ArrayList<>();
+        urls.add(job.getUrl());
+        for (DownloadJob queued : jobs) {
+            for (DownloadJob leaf : queued.getLeaves()) {
+                if (urls.size() >= batchSize) break;
+                if (leaf != job && leaf.getState() == DownloadJob.State.QUEUED) urls.add(leaf.getUrl());
+            }
+        }
+        MetadataCache.prefetch(urls);
+    }
+
+    // Schedule every entry as its own job, they share the pool with all other downloads
+    private void expand(DownloadJob playlist) {
+        playlist.setState(DownloadJob.State.RUNNING);
+        playlist.setMessage("Expanding playlist...");
+        listener.onStatus(playlist, "Expanding playlist...");
+
+        List<String> entries;
+        try {
+            entries = PlaylistExpander.expand(playlist);
+        }
+        catch (Exception e) {
+            finish(playlist, DownloadJob.State.FAILED, e.getMessage());
+            return;
+        }
+
+        if (playlist.isCancelled()) {
+            finishStopped(playlist);
+            return;
+        }
+        // Looked like a channel but is a single video, it is downloaded from its own URL like any other
+        if (entries == null) {
+            playlist.setSingleVideo(true);
+            playlist.setState(DownloadJob.State.QUEUED);
+            playlist.setMessage("Queued");
+            listener.onStatus(playlist, playlist.getMessage());
+            schedule(playlist);
+            return;
+        }
+        if (entries.isEmpty()) {
+            finish(playlist, DownloadJob.State.FAILED, "No videos found in playlist");
+            return;
+        }
+
+        playlist.setMessage("Downloading " + entries.size() + " videos...");
+        List<DownloadJob> children = new ArrayList<>();
+        for (String entry : entries) {
+            DownloadJob child = new DownloadJob(entry, playlist.getQuality(), playlist.getOutputDir(), playlist);
+            child.setConcurrentFragments(playlist.getConcurrentFragments());
+            child.setDownloadAgain(playlist.isDownloadAgain());
+            playlist.addChild(child);
+            children.add(child);
+        }
+        for (DownloadJob child : children) {
+            schedule(child);
+        }
+    }
+
+    // Cancelled or paused by the user, once even if a wake-up and the queue get to the job at the same time
+    private void finishStopped(DownloadJob job) {
+        synchronized (job) {
+            if (job.isDone()) return;
+            if (job.isPaused()) finish(job, DownloadJob.State.PAUSED, "Download paused");
+            else finish(job, DownloadJob.State.CANCELLED, "Download cancelled by user");
+        }
+    }
+
+    // Failed for good, only then the download goes into the history as failed, not for attempts that are retried
+    private void fail(DownloadJob job, String message) {
+        Utils.writeHistory(1, job.getTitle(), job.getUrl());
+        finish(job, DownloadJob.State.FAILED, message);
+    }
+
+    private void finish(DownloadJob job, DownloadJob.State state, String message) {
+        DiskSpace.release(job);
+        job.setMessage(message);
+        job.setState(state);
+
+        // Only paused jobs keep their manifest for resuming
+        JobManifest manifest = job.getManifest();
+        if (manifest != null && state != DownloadJob.State.PAUSED) {
+            manifest.delete();
+        }
+
+        // Playlists are counted through their entries
+        if (job.getChildren().isEmpty()) {
+            Metrics.jobFinished(job);
+        }
+        listener.onFinished(job);
+
+        DownloadJob parent = job.getParent();
+        if (parent != null) {
+            finishPlaylist(parent);
+        }
+    }
+
+    // A playlist is finished with its last entry
+    private void finishPlaylist(DownloadJob playlist) {
+        List<DownloadJob> entries = playlist.getChildren();
+        if (!entries.stream().allMatch(DownloadJob::isDone)) return;
+
+        synchronized (playlist) {
+            if (playlist.isDone()) return;
+
+            DownloadJob.State state;
+            if (entries.stream().anyMatch(entry -> entry.getState() == DownloadJob.State.FAILED)) state = DownloadJob.State.FAILED;
+            else if (playlist.isPaused()) state = DownloadJob.State.PAUSED;
+            else if (playlist.isCancelled()) state = DownloadJob.State.CANCELLED;
+            else state = DownloadJob.State.COMPLETED;
+
+            finish(playlist, state, "Playlist: " + summarize(entries));
+        }
+    }
+
+    // Result counts, e.g. "3 completed, 1 failed, 0 cancelled"
+    public static String summarize(List<DownloadJob> downloads) {
+        long completed = downloads.stream().filter(job -> job.getState() == DownloadJob.State.COMPLETED).count();
+        long failed = downloads.stream().filter(job -> job.getState() == DownloadJob.State.FAILED).count();
+        long cancelled = downloads.stream().filter(job -> job.getState() == DownloadJob.State.CANCELLED).count();
+        long skipped = downloads.stream().filter(job -> job.getState() == DownloadJob.State.SKIPPED).count();
+        long paused = downloads.stream().filter(job -> job.getState() == DownloadJob.State.PAUSED).count();
+        String result = completed + " completed, " + failed + " failed, " + cancelled + " cancelled";
+        if (paused > 0) result += ", " + paused + " paused";
+        return skipped > 0 ? result + ", " + skipped + " already downloaded" : result;
+    }
+
+    // Cancel every job that is still queued or running
+    public void cancelAll() {
+        for (DownloadJob job : jobs) {
+            if (!job.isDone()) {
+                job.cancel();
+            }
+        }
+    }
+
+    // Pause every job that is still queued or running, their manifests and partial files are kept
+    public void pauseAll() {
+        for (DownloadJob job : jobs) {
+            if (!job.isDone()) {
+                job.pause();
+            }
+        }
+    }
+
+    // Fragments fetched in parallel by jobs submitted from now on, 0 uses the configured value per host
+    public void setConcurrentFragments(int concurrentFragments) {
+        this.concurrentFragments = Math.max(0, concurrentFragments);
+    }
+
+    public List<DownloadJob> getJobs() {
+        return List.copyOf(jobs);
+    }
+
+    // Job or playlist entry with the given id, null if unknown
+    public DownloadJob findJob(long id) {
+        for (DownloadJob job : jobs) {
+            if (job.getId() == id) return job;
+            for (DownloadJob child : job.getChildren()) {
+                if (child.getId() == id) return child;
+            }
+        }
+        return null;
+    }
+
+    // Forget finished jobs so the list doesn't grow over a long session
+    public void removeFinished() {
+        jobs.removeIf(DownloadJob::isDone);
+    }
+
+    // Stop for app exit, unfinished jobs are paused so they are restored on the next start
+    public void shutdown() {
+        pauseAll();
+        MetadataCache.stopBatches();
+        executor.shutdownNow();
+    }
+}
@@ -1,107 +1,408 @@
 package dev.dreiling.videodl;
 
-import javafx.application.Platform;
 import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 public class DownloadService {
 
-    private static volatile Process currentProcess;
-    private static volatile boolean cancelled = false;
+    // Side channel lines printed by yt-dlp (--print) next to its normal output
+    private static final String MARKER_ID = "[videodl] id=";
+    private static final String MARKER_TITLE = "[videodl] title=";
+    private static final String MARKER_FILE = "[videodl] file=";
+    private static final String DESTINATION = "[download] Destination:";
+    private static final String MERGING = "[Merger] Merging formats into \"";
 
-    public static void cancel() {
-        cancelled = true;
-        if (currentProcess != null) {
-            currentProcess.destroy();
+    private static final long PROCESS_EXIT_TIMEOUT_MS = 5000;
+
+    private static final String SCRATCH_DIR = AppConfig.getString("videodl.scratch-dir", null);
+
+    private static final boolean STAGED_MERGE = Boolean.parseBoolean(AppConfig.getString("videodl.staged-merge", "true"));
+
+    // Outcome of the fetch stage: streams left to merge, or none if the download is already complete
+    public record Fetched(String videoId, String title, List<File> streams, String container) {
+        public boolean needsMerge() {
+            return container != null && streams.size() > 1;
         }
     }
 
-    public static boolean downloadVideo(String downloadsDir, String videoUrl, String quality,
-                                     Consumer<Double> progressCallback, Consumer<String> statusCallback) throws Exception {
-        cancelled = false;
+    // Returned instead of starting yt-dlp while other downloads hold the disk space this one needs,
+    // the job's message says what is missing. The caller queues the job again with DiskSpace.await().
+    public static final Fetched WAITING_FOR_SPACE = new Fetched(null, null, List.of(), null);
+
+    // Runs the fetch stage of a single job, each job owns its process and cancellation state.
+    // Returns null if the job was cancelled or paused.
+    public static Fetched downloadVideo(DownloadJob job, Consumer<ProgressEvent> progressCallback,
+                                        Consumer<String> statusCallback) throws Exception {
+        String downloadsDir = job.getOutputDir();
+        String videoUrl = job.getUrl();
+        String quality = job.getQuality();
+
+        // Get yt-dlp.exe and ffmpeg.exe from the binary cache (extracted from resources/bin only once)
+        File ytDlpExe = BinaryCache.get("yt-dlp.exe");
+        File ffmpegExe = BinaryCache.get("ffmpeg.exe");
+
+        // Download under the video ID, the file is renamed to the sanitized title once it is finished.
+        // Title and ID are printed by the same process, so metadata is only extracted once.
+        String outputTemplate = "%(id)s.%(ext)s";
+        File outputDir = new File(downloadsDir).getAbsoluteFile();
+
+        int fragments = getConcurrentFragments(job);
+
+        // Start from the cached info JSON, so a URL is extracted once per TTL and not again on every retry
+        MetadataCache.Info info = null;
+        if (MetadataCache.ENABLED) {
+            Metrics.Span extract = Metrics.start(job, Metrics.Stage.EXTRACT);
+            try {
+                info = MetadataCache.get(videoUrl, job);
+            }
+            catch (Exception e) {
+                if (job.isCancelled()) return null;
+                throw e;
+            }
+            finally {
+                extract.end();
+            }
+        }
 
-        // Extract yt-dlp.exe and ffmpeg.exe from resources/bin to temp files
-        File ytDlpExe = Utils.extractExecutable("yt-dlp.exe");
-        File ffmpegExe = Utils.extractExecutable("ffmpeg.exe");
+        // Pick formats from the real format list so streams are only copied, never re-encoded,
+        // the fixed format strings are the fallback without metadata
+        // An earlier attempt's formats are kept while the video still offers them, its partial files are continued
+        FormatSelector.Selection selection = job.getSelection();
+        if (selection != null && info != null && !FormatSelector.isOffered(info.formats(), selection)) {
+            selection = null;
+        }
+        if (selection == null && info != null) {
+            selection = FormatSelector.select(info.formats(), quality);
+        }
+        if (selection == null) {
+            selection = new FormatSelector.Selection(Utils.getFormatCode(quality), "mp4");
+        }
+        if (!selection.equals(job.getSelection())) {
+            job.setSelection(selection);
+            JobManifest jobManifest = job.getManifest();
+            if (jobManifest != null) {
+                jobManifest.setSelection(selection);
+                jobManifest.save();
+            }
+        }
 
-        // Extract title and sanitize
-        String rawTitle = Utils.getVideoTitle(ytDlpExe, videoUrl);
-        String sanitizedTitle = Utils.sanitizeTitle(rawTitle);
+        // Staged: yt-dlp only fetches the streams (-f video,audio), they are merged on the post-processing
+        // executor so this download slot is free as soon as the bytes have landed.
+        // Only for an exact pair of format IDs picked by FormatSelector, not for the fallback format strings.
+        boolean staged = STAGED_MERGE && selection.container() != null && info != null
+                && selection.formatSpec().matches("[^+/\\[]+\\+[^+/\\[]+");
+        if (staged) {
+            outputTemplate = "%(id)s.f%(format_id)s.%(ext)s";
+        }
 
-        // Set output path using sanitized title
-        String outputPattern = sanitizedTitle + ".%(ext)s";
-        String outputPath = new File(downloadsDir, outputPattern).getAbsolutePath();
+        // Only the streams of a staged merge go to the scratch folder, ffmpeg reads them from there and writes
+        // the merged file into the output folder. Everything else is downloaded in the output folder, so
+        // yt-dlp's final rename of a part or merged file never has to copy across drives.
+        File workDir = staged ? getWorkDir(job) : outputDir;
 
-        // Format Selected Quality
-        String formatCode = Utils.getFormatCode(quality);
+        // Admit the download only while the drives have room for it: the file in the output folder, plus the
+        // streams to merge (in the scratch folder for staged merges)
+        long size = FormatSelector.estimateSize(info, selection);
+        Map<File, Long> needed = new HashMap<>();
+        needed.put(outputDir, size);
+        if (staged || selection.formatSpec().contains("+")) {
+            needed.merge(workDir, size, Long::sum);
+        }
+        String shortage = DiskSpace.tryReserve(job, needed);
+        if (shortage != null) {
+            job.setMessage("Waiting for disk space, " + shortage);
+            return WAITING_FOR_SPACE;
+        }
 
         // Build Process and start
-        ProcessBuilder builder = new ProcessBuilder(
+        List<String> command = new ArrayList<>(List.of(
                 ytDlpExe.getAbsolutePath(),
-                "-f", formatCode,
+                "-f", staged ? selection.formatSpec().replace('+', ',') : selection.formatSpec(),
                 "--no-warnings",
-                "--merge-output-format", "mp4",
+                "--no-playlist",
+                "--continue",
+                "--concurrent-fragments", String.valueOf(fragments),
                 "--ffmpeg-location", ffmpegExe.getAbsolutePath(),
-                "-o", outputPath,
-                videoUrl
-        );
+                "-P", "home:" + workDir.getAbsolutePath(),
+                "-o", outputTemplate,
+                "--newline",
+                "--progress-template", ProgressParser.TEMPLATE,
+                "--no-quiet",
+                "--no-simulate",
+                "--print", "before_dl:" + MARKER_ID + "%(id)s",
+                "--print", "before_dl:" + MARKER_TITLE + "%(title)s",
+                "--print", "after_move:" + MARKER_FILE + "%(filepath)s"
+        ));
+        if (selection.container() != null && !staged) {
+            command.add("--merge-output-format");
+            command.add(selection.container());
+        }
+        if (job.getRateLimit() > 0) {
+            command.add("--limit-rate");
+            command.add(String.valueOf(job.getRateLimit()));
+        }
+        if (info != null) {
+            command.add("--load-info-json");
+            command.add(info.file().getAbsolutePath());
+        }
+        else {
+            command.add(videoUrl);
+        }
+        ProcessBuilder builder = new ProcessBuilder(command);
         builder.redirectErrorStream(true);
-        currentProcess = builder.start();
+        if (job.isCancelled()) return null;
+        Metrics.Span spawn = Metrics.start(job, Metrics.Stage.SPAWN);
+        if (info != null) MetadataCache.use(info);
+        Process process;
+        try {
+            process = builder.start();
+        }
+        catch (IOException e) {
+            if (info != null) MetadataCache.release(info);
+            throw e;
+        }
+        spawn.end();
+        job.attachProcess(process);
+        Metrics.Span download = Metrics.start(job, Metrics.Stage.DOWNLOAD);
+        long bytesDownloaded = 0;
+        int fragmentBound = 0;
 
         // Read and Update Progress and Log output
-        BufferedReader reader = new BufferedReader(new InputStreamReader(currentProcess.getInputStream()));
-        StringBuilder outputLog = new StringBuilder();
-        String line;
+        LineReader reader = new LineReader(process.getInputStream());
+        ProgressParser parser = new ProgressParser();
+        ProgressEvent event = new ProgressEvent();
+        event.setConcurrentFragments(fragments);
+        ErrorTail errors = new ErrorTail(10);
+        String logPrefix = "[" + job.getId() + "] ";
+        LogWriter.logStamped(logPrefix + videoUrl);
+        String videoId = null;
+        String sanitizedTitle = "Unknown";
+        List<File> streams = new ArrayList<>();
+        File finished = null;
+        JobManifest manifest = job.getManifest();
+        long manifestSaved = System.currentTimeMillis();
 
         try {
-            while ((line = reader.readLine()) != null) {
+            while (reader.readLine()) {
 
-                if (cancelled) return false;
+                if (job.isCancelled()) return null;
 
-                // Clean status message and filter for log
-                String parsed = Utils.cleanStatus(line.trim());
-                String message = Utils.filterMessage(parsed);
+                // Progress lines are parsed straight from the line buffer, no strings are created for them
+                ProgressEvent.Phase phase = event.getPhase();
+                if (parser.parse(reader.buffer(), 0, reader.length(), event)) {
+                    progressCallback.accept(event);
 
+                    // Highest fragment number that can exist on disk: the count if yt-dlp knows it, else the
+                    // fragments in flight beyond the last one reported
+                    fragmentBound = Math.max(fragmentBound, Math.max(event.getFragmentCount(), event.getFragmentIndex() + fragments));
+                    if (event.isFinished() && event.getDownloadedBytes() > 0) {
+                        bytesDownloaded += event.getDownloadedBytes();
+                    }
+
+                    // Keep the bytes done in the manifest roughly up to date for resuming
+                    if (manifest != null && System.currentTimeMillis() - manifestSaved > 5000) {
+                        manifest.set("bytesDone", String.valueOf(event.getDownloadedBytes()));
+                        manifest.save();
+                        manifestSaved = System.currentTimeMillis();
+                    }
+                    continue;
+                }
+                if (event.getPhase() != phase) {
+                    progressCallback.accept(event);
+                }
+
+                String line = reader.toString().trim();
+
+                // Pick up ID, title and final file from the side channel
+                if (line.startsWith(MARKER_ID)) {
+                    videoId = line.substring(MARKER_ID.length()).trim();
+                    if (manifest != null) {
+                        manifest.set("videoId", videoId);
+                        manifest.set("outputPath", new File(downloadsDir, videoId).getAbsolutePath());
+                        manifest.save();
+                    }
+                    continue;
+                }
+                if (line.startsWith(MARKER_TITLE)) {
+                    sanitizedTitle = Utils.sanitizeTitle(line.substring(MARKER_TITLE.length()).trim());
+                    job.setTitle(sanitizedTitle);
+                    if (manifest != null) {
+                        manifest.set("title", sanitizedTitle);
+                        manifest.save();
+                    }
+                    continue;
+                }
+                if (line.startsWith(MARKER_FILE)) {
+                    File file = new File(line.substring(MARKER_FILE.length()).trim());
+                    if (staged) streams.add(file);
+                    else finished = renameToTitle(file, sanitizedTitle, videoId, videoUrl);
+                    continue;
+                }
+
+                // Remember what yt-dlp writes, so a cancelled job removes exactly its own files
+                if (line.startsWith(DESTINATION)) {
+                    job.addPartialFile(new File(line.substring(DESTINATION.length()).trim()));
+                }
+                else if (line.startsWith(MERGING) && line.endsWith("\"")) {
+                    // yt-dlp merges into <name>.temp.<ext> first
+                    File merged = new File(line.substring(MERGING.length(), line.length() - 1));
+                    String name = merged.getName();
+                    int dot = name.lastIndexOf('.');
+                    job.addPartialFile(new File(merged.getParentFile(), dot != -1
+                            ? name.substring(0, dot) + ".temp" + name.substring(dot) : name + ".temp"));
+                }
+
+                // Filter for log
+                String message = Utils.filterMessage(line);
                 if (!message.isEmpty()) {
-                    outputLog.append(message).append(System.lineSeparator());
+                    LogWriter.log(logPrefix + message);
                 }
+                errors.add(line);
 
-                // Call back progress and status for UI updates
-                Double progress = Utils.parseProgress(parsed);
-                if (progress != null) {
-                    Platform.runLater(() -> progressCallback.accept(progress));
+                // Call back status, the listener decides how often the UI is updated
+                if (!line.isEmpty()) {
+                    statusCallback.accept(line);
                 }
-                Platform.runLater(() -> statusCallback.accept(parsed));
             }
 
             // Wait for the process to finish
-            int exitCode = currentProcess.waitFor();
-
-            // Write log and history
-            Utils.writeLog(outputLog.toString());
-            Utils.writeHistory(exitCode, sanitizedTitle, videoUrl);
+            int exitCode = process.waitFor();
+            if (job.isCancelled()) return null;
 
             if (exitCode != 0) {
-                throw new Exception(Utils.extractErrorMessage(outputLog.toString()));
+                // The log has been written while downloading, the history only gets the failure once the job
+                // isn't retried anymore (DownloadQueue)
+
+                // The format URLs in the cached info may have expired, extract again next time.
+                // Not after a 429, extracting again would only add requests to a host that is throttling.
+                String message = errors.toMessage();
+                if (info != null && FailureReason.classify(message) != FailureReason.RATE_LIMITED) {
+                    MetadataCache.invalidate(videoUrl);
+                }
+                throw new Exception(message);
+            }
+
+            // History of a merged download is written by the post-processing stage
+            Fetched fetched = new Fetched(videoId, sanitizedTitle, streams, staged ? selection.container() : null);
+            if (fetched.needsMerge()) {
+                return fetched;
+            }
+            if (streams.size() == 1) {
+                finished = renameToTitle(streams.get(0), sanitizedTitle, videoId, videoUrl);
             }
-            return true;
+            Utils.writeHistory(0, sanitizedTitle, videoUrl, finished);
+            return new Fetched(videoId, sanitizedTitle, List.of(), null);
         }
         finally {
             reader.close();
+            download.end(bytesDownloaded);
+            if (info != null) MetadataCache.release(info);
 
-            if (cancelled) {
-                try {
-                    if (cancelled && currentProcess.isAlive()) {
-                        currentProcess.destroyForcibly();
-                        currentProcess.waitFor();
+            if (job.isCancelled()) {
+                // Files are only touched once yt-dlp and the ffmpeg processes it started are gone
+                awaitExit(job, process);
+
+                // Paused jobs keep their partial files, yt-dlp continues them (--continue)
+                if (job.isPaused()) {
+                    if (manifest != null) {
+                        manifest.set("bytesDone", String.valueOf(event.getDownloadedBytes()));
+                        manifest.save();
                     }
-                    // give OS time to release file locks
-                    Thread.sleep(1000);
                 }
-                catch (InterruptedException ignored) {}
+                else {
+                    Utils.cleanupPartialFiles(job.takePartialFiles(), fragmentBound);
+                }
+            }
+        }
+    }
+
+    // Kill what is still running of a cancelled job and wait until yt-dlp has exited. Files its children
+    // still hold open for a moment are retried when deleting them (Utils.deleteWhenReleased).
+    private static void awaitExit(DownloadJob job, Process process) {
+        Utils.destroyTree(process, true);
+        try {
+            if (!process.waitFor(PROCESS_EXIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                System.err.println("Process of job " + job.getId() + " did not exit in time");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Streams of a staged merge go to the scratch folder (videodl.scratch-dir) if there is one,
+    // e.g. a fast local drive, else straight to the output folder
+    static File getWorkDir(DownloadJob job) {
+        if (SCRATCH_DIR != null && !SCRATCH_DIR.isBlank()) {
+            File scratch = new File(SCRATCH_DIR);
+            if (scratch.isDirectory() || scratch.mkdirs()) return scratch.getAbsoluteFile();
+            System.err.println("Scratch folder not available: " + scratch.getAbsolutePath());
+        }
+        return new File(job.getOutputDir()).getAbsoluteFile();
+    }
 
-                Utils.cleanupPartialFiles(downloadsDir, sanitizedTitle);
+    // Rename a finished download from its video ID to the sanitized title, keeping the extension. A file that
+    // already has the name is only replaced if the history has it as a download of the same video. Otherwise the
+    // ID is appended, "Title [id].mp4", a name only this video gets. Without an ID a number is appended instead,
+    // "Title (2).mp4", nothing is replaced. Returns where the file is now.
+    static File renameToTitle(File downloaded, String sanitizedTitle, String videoId, String url) throws IOException {
+        return renameToTitle(downloaded, sanitizedTitle, videoId, url, HistoryStore.get());
+    }
+
+    static File renameToTitle(File downloaded, String sanitizedTitle, String videoId, String url, HistoryStore history)
+            throws IOException {
+        if (!downloaded.isFile()) return downloaded;
+
+        String name = downloaded.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = dot != -1 ? name.substring(dot) : "";
+        File dir = downloaded.getParentFile();
+
+        File target = new File(dir, sanitizedTitle + extension);
+        if (target.equals(downloaded)) return downloaded;
+        if (videoId != null && target.isFile()
+                && HistoryStore.normalizeUrl(url).equals(history.findKeyByFile(target))) {
+            Files.move(downloaded.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return target;
+        }
+
+        try {
+            Files.move(downloaded.toPath(), target.toPath());
+            return target;
+        }
+        catch (FileAlreadyExistsException ignored) {
+            // Another video's file, or one the history doesn't know
+        }
+
+        if (videoId != null) {
+            File withId = new File(dir, sanitizedTitle + " [" + videoId + "]" + extension);
+            Files.move(downloaded.toPath(), withId.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return withId;
+        }
+        for (int n = 2; ; n++) {
+            File numbered = new File(dir, sanitizedTitle + " (" + n + ")" + extension);
+            try {
+                Files.move(downloaded.toPath(), numbered.toPath());
+                return numbered;
             }
+            catch (FileAlreadyExistsException ignored) {}
+        }
+    }
+
+    // The job's own setting, else videodl.concurrent-fragments.<host>, else videodl.concurrent-fragments
+    static int getConcurrentFragments(DownloadJob job) {
+        if (job.getConcurrentFragments() > 0) {
+            return job.getConcurrentFragments();
         }
+        int fallback = AppConfig.getInt("videodl.concurrent-fragments", 4);
+        return Math.max(1, AppConfig.getInt("videodl.concurrent-fragments." + Utils.getHost(job.getUrl()), fallback));
     }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package dev.dreiling.videodl;
+
+public class ErrorTail {
+
+    private final String[] lines;
+    private int next = 0;
+    private int count = 0;
+
+    // Ring buffer keeping only the most recent error lines of a job
+    public ErrorTail(int capacity) {
+        this.lines = new String[capacity];
+    }
+
+    // Keep the line if it reports an error, older errors are overwritten once the buffer is full
+    public void add(String line) {
+        if (line == null || !containsIgnoreCase(line, "error")) return;
+
+        lines[next] = line.trim();
+        next = (next + 1) % lines.length;
+        count = Math.min(count + 1, lines.length);
+    }
+
+    // All error lines of the output joined, built from the retained lines only
+    public String toMessage() {
+        if (count == 0) return "Unknown error occurred.";
+
+        StringBuilder errors = new StringBuilder();
+        int start = (next - count + lines.length) % lines.length;
+        for (int i = 0; i < count; i++) {
+            errors.append(lines[(start + i) % lines.length]);
+        }
+        return errors.toString().trim();
+    }
+
+    private static boolean containsIgnoreCase(String text, String word) {
+        int max = text.length() - word.length();
+        for (int i = 0; i <= max; i++) {
+            if (text.regionMatches(true, i, word, 0, word.length())) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,56 @@
+package dev.dreiling.videodl;
+
+import java.util.Locale;
+
+// Why a download failed, derived from the error lines yt-dlp or ffmpeg printed
+public enum FailureReason {
+    RATE_LIMITED("error 429", "too many requests", "rate limit", "rate-limit"),
+    FORBIDDEN("error 403", "forbidden"),
+    NOT_FOUND("error 404", "not found"),
+    UNSUPPORTED("unsupported url", "no video formats found", "requested format is not available"),
+    UNAVAILABLE("video unavailable", "private video", "has been removed", "not available", "members-only",
+            "sign in to confirm", "geo restricted", "copyright", "account associated with this video has been terminated"),
+    SERVER("http error 5", "internal server error", "bad gateway", "service unavailable", "gateway timeout"),
+    NETWORK("timed out", "timeout", "connection reset", "connection refused", "connection aborted", "unable to download",
+            "urlopen error", "getaddrinfo", "name or service not known", "network is unreachable", "temporary failure",
+            "incomplete read", "remote end closed"),
+    DISK("no space left", "disk full", "not enough space", "permission denied", "access is denied", "read-only file system"),
+    MERGE("merging failed", "ffmpeg", "postprocessing", "conversion failed"),
+    UNKNOWN;
+
+    // What a retry can do about it: transient errors are retried after a backoff, rate limited ones
+    // after the host has cooled down, permanent ones fail the job right away
+    public enum Kind { TRANSIENT, RATE_LIMITED, PERMANENT }
+
+    private final String[] patterns;
+
+    FailureReason(String... patterns) {
+        this.patterns = patterns;
+    }
+
+    // First matching reason in declaration order, more specific reasons are declared first
+    public static FailureReason classify(String message) {
+        if (message == null || message.isEmpty()) return UNKNOWN;
+
+        String lower = message.toLowerCase(Locale.ROOT);
+        for (FailureReason reason : values()) {
+            for (String pattern : reason.patterns) {
+                if (lower.contains(pattern)) return reason;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    public Kind kind() {
+        return switch (this) {
+            case RATE_LIMITED -> Kind.RATE_LIMITED;
+            case SERVER, NETWORK -> Kind.TRANSIENT;
+            default -> Kind.PERMANENT;
+        };
+    }
+
+    // Label for metrics, e.g. rate_limited
+    public String label() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,138 @@
+package dev.dreiling.videodl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+public class FormatSelector {
+
+    // Codecs mp4 holds as they are, ffmpeg only copies the streams into the container
+    private static final Set<String> MP4_VIDEO = Set.of("avc1", "avc3", "h264", "hev1", "hvc1", "hevc", "av01");
+    private static final Set<String> MP4_AUDIO = Set.of("mp4a", "aac", "ac-3", "ec-3", "mp3");
+    private static final Set<String> WEBM_VIDEO = Set.of("vp8", "vp9", "vp09", "av01");
+    private static final Set<String> WEBM_AUDIO = Set.of("opus", "vorbis");
+
+    // Format IDs for yt-dlp (-f) and the container separate streams are merged into, null if nothing is merged
+    public record Selection(String formatSpec, String container) {}
+
+    // Whether the format IDs of an earlier selection are all still in the format list. Format strings
+    // such as the fallbacks of Utils.getFormatCode are resolved by yt-dlp, they always count as offered.
+    public static boolean isOffered(List<MetadataCache.Format> formats, Selection selection) {
+        String spec = selection.formatSpec();
+        if (spec.contains("/") || spec.contains("[")) return true;
+
+        for (String id : spec.split("[+,]")) {
+            if (formats.stream().noneMatch(format -> format.id().equals(id))) return false;
+        }
+        return true;
+    }
+
+    // Pick formats for a quality label (e.g. 1080p, 1440p60, Audio only) that need no re-encoding:
+    // a single file with video and audio if there is one at the best height, else a pair of streams
+    // that fits mp4, else webm, else mkv. Null if the format list doesn't help, e.g. generic sites.
+    public static Selection select(List<MetadataCache.Format> formats, String quality) {
+        if (formats == null || formats.isEmpty()) return null;
+
+        if (quality.equals("Audio only")) {
+            MetadataCache.Format audio = best(formats, format -> !format.hasVideo() && format.hasAudio()
+                    && MP4_AUDIO.contains(format.acodec()));
+            if (audio == null) audio = best(formats, format -> !format.hasVideo() && format.hasAudio());
+            return audio == null ? null : new Selection(audio.id(), null);
+        }
+
+        int maxHeight = parseHeight(quality);
+        boolean wants60 = quality.endsWith("p60");
+        if (maxHeight <= 0) return null;
+
+        // Highest available height up to the selected one, the lowest one if all are above it
+        List<MetadataCache.Format> videos = new ArrayList<>();
+        int height = -1;
+        int lowest = Integer.MAX_VALUE;
+        for (MetadataCache.Format format : formats) {
+            if (!format.hasVideo() || format.height() <= 0) continue;
+            videos.add(format);
+            lowest = Math.min(lowest, format.height());
+            if (format.height() <= maxHeight) height = Math.max(height, format.height());
+        }
+        if (videos.isEmpty()) return null;
+        if (height < 0) height = lowest;
+
+        // Same height only, 50/60 fps streams just for the p60 labels if there is a choice
+        int targetHeight = height;
+        videos.removeIf(format -> format.height() != targetHeight);
+        List<MetadataCache.Format> matchingFps = videos.stream()
+                .filter(format -> (format.fps() >= 50) == wants60).toList();
+        if (!matchingFps.isEmpty()) videos = matchingFps;
+        List<MetadataCache.Format> candidates = videos;
+
+        // A file with both streams needs no ffmpeg at all
+        MetadataCache.Format progressive = best(candidates, format -> format.hasAudio()
+                && (format.ext().equals("mp4") || format.ext().equals("webm")));
+        if (progressive != null) {
+            return new Selection(progressive.id(), null);
+        }
+
+        List<MetadataCache.Format> audios = formats.stream()
+                .filter(format -> !format.hasVideo() && format.hasAudio()).toList();
+
+        MetadataCache.Format video = best(candidates, format -> MP4_VIDEO.contains(format.vcodec()));
+        MetadataCache.Format audio = best(audios, format -> MP4_AUDIO.contains(format.acodec()));
+        if (video != null && audio != null) {
+            return new Selection(video.id() + "+" + audio.id(), "mp4");
+        }
+
+        video = best(candidates, format -> WEBM_VIDEO.contains(format.vcodec()));
+        audio = best(audios, format -> WEBM_AUDIO.contains(format.acodec()));
+        if (video != null && audio != null) {
+            return new Selection(video.id() + "+" + audio.id(), "webm");
+        }
+
+        // Any pair still merges without re-encoding into mkv
+        video = best(candidates, format -> true);
+        audio = best(audios, format -> true);
+        if (audio == null) {
+            return new Selection(video.id(), null);
+        }
+        return new Selection(video.id() + "+" + audio.id(), "mkv");
+    }
+
+    // Expected bytes of the selected formats, from their sizes or else bitrate and duration, -1 if unknown
+    // (e.g. for the fallback format strings)
+    public static long estimateSize(MetadataCache.Info info, Selection selection) {
+        if (info == null || selection == null) return -1;
+
+        long total = 0;
+        for (String id : selection.formatSpec().split("\\+")) {
+            MetadataCache.Format format = info.formats().stream()
+                    .filter(candidate -> candidate.id().equals(id)).findFirst().orElse(null);
+            if (format == null) return -1;
+
+            if (format.size() > 0) total += format.size();
+            else if (format.tbr() > 0 && info.duration() > 0) total += (long) (format.tbr() * 1000 / 8 * info.duration());
+            else return -1;
+        }
+        return total;
+    }
+
+    // Height of a label like 1080p or 1440p60, -1 if it isn't one
+    public static int parseHeight(String quality) {
+        int p = quality.indexOf('p');
+        if (p <= 0) return -1;
+        try {
+            return Integer.parseInt(quality.substring(0, p));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Highest bitrate among the matching formats
+    private static MetadataCache.Format best(List<MetadataCache.Format> formats, Predicate<MetadataCache.Format> filter) {
+        return formats.stream()
+                .filter(filter)
+                .max(Comparator.comparingDouble(MetadataCache.Format::tbr))
+                .orElse(null);
+    }
+}
@@ -0,0 +1,261 @@
+package dev.dreiling.videodl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class HeadlessRunner implements DownloadListener {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: VideoDL [options] [URL...]",
+            "  -o, --output <dir>     output folder (default: current folder)",
+            "  -q, --quality <q>      e.g. 2160p, 1080p60, 720p, 360p or \"Audio only\" (default: 360p)",
+            "  -p, --parallel <n>     downloads running in parallel",
+            "  -N, --fragments <n>    HLS/DASH fragments fetched in parallel (default: per site)",
+            "  -f, --file <file>      read URLs from a file, one per line (- for stdin)",
+            "  -r, --limit-rate <r>   total bandwidth shared by all downloads, e.g. 5M (bytes/s)",
+            "      --resume           also continue downloads left unfinished by an earlier run",
+            "  -a, --again            download videos again that the history has as downloaded",
+            "      --yt-dlp <path>    use an installed yt-dlp instead of the bundled one",
+            "      --ffmpeg <path>    use an installed ffmpeg instead of the bundled one",
+            "      --metrics <file>   write download metrics (Prometheus text format) when done",
+            "      --serve            keep running and accept downloads over the local HTTP API",
+            "      --port <n>         port of the HTTP API (default: videodl.control-port)",
+            "  -h, --help             show this help",
+            "Without URLs, --file or --serve, URLs are read from stdin.");
+
+    private final PrintStream out;
+    private final Object finishedLock = new Object();
+
+    private HeadlessRunner(PrintStream out) {
+        this.out = out;
+    }
+
+    // Runs the downloads given on the command line, returns the process exit code
+    public static int run(String[] args) {
+        String outputDir = System.getProperty("user.dir");
+        String quality = "360p";
+        int parallel = AppConfig.getInt("videodl.parallel-downloads", 3);
+        int fragments = 0;
+        boolean resume = false;
+        boolean serve = false;
+        String metricsFile = null;
+        int port = AppConfig.getInt("videodl.control-port", 8765);
+        List<String> urls = new ArrayList<>();
+        List<String> files = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-o", "--output" -> outputDir = value(args, ++i, arg);
+                    case "-q", "--quality" -> quality = value(args, ++i, arg);
+                    case "-p", "--parallel" -> parallel = Integer.parseInt(value(args, ++i, arg));
+                    case "-N", "--fragments" -> fragments = Integer.parseInt(value(args, ++i, arg));
+                    case "-f", "--file" -> files.add(value(args, ++i, arg));
+                    case "-r", "--limit-rate" -> System.setProperty("videodl.bandwidth-limit", value(args, ++i, arg));
+                    case "--resume" -> resume = true;
+                    case "-a", "--again" -> System.setProperty("videodl.skip-downloaded", "false");
+                    case "--serve" -> serve = true;
+                    case "--metrics" -> metricsFile = value(args, ++i, arg);
+                    case "--port" -> port = Integer.parseInt(value(args, ++i, arg));
+                    case "--yt-dlp" -> System.setProperty("videodl.yt-dlp", value(args, ++i, arg));
+                    case "--ffmpeg" -> System.setProperty("videodl.ffmpeg", value(args, ++i, arg));
+                    case "--cli", "--headless" -> {}
+                    case "-h", "--help" -> {
+                        System.out.println(USAGE);
+                        return 0;
+                    }
+                    default -> {
+                        if (arg.startsWith("-") && !arg.equals("-")) throw new IllegalArgumentException("Unknown option: " + arg);
+                        if (arg.equals("-")) files.add("-");
+                        else urls.add(arg);
+                    }
+                }
+            }
+
+            if (urls.isEmpty() && files.isEmpty() && !serve) {
+                files.add("-");
+            }
+            for (String file : files) {
+                urls.addAll(readUrls(file));
+            }
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        List<String> valid = new ArrayList<>();
+        for (String url : urls) {
+            if (Utils.isValidUrl(url)) valid.add(url);
+            else System.err.println("Skipping invalid URL: " + url);
+        }
+
+        File output = new File(outputDir);
+        if (!output.isDirectory() && !output.mkdirs()) {
+            System.err.println("Output folder not available: " + output.getAbsolutePath());
+            return 2;
+        }
+
+        if (serve) {
+            return serve(valid, quality, output.getAbsolutePath(), parallel, fragments, resume, port);
+        }
+        int exitCode = download(valid, quality, output.getAbsolutePath(), parallel, fragments, resume);
+        if (metricsFile != null) {
+            writeMetrics(metricsFile);
+        }
+        return exitCode;
+    }
+
+    private static void writeMetrics(String file) {
+        try {
+            Files.writeString(new File(file).toPath(), Metrics.toPrometheus(), StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write metrics: " + e.getMessage());
+        }
+    }
+
+    // Run the HTTP control API until the process is stopped
+    private static int serve(List<String> urls, String quality, String outputDir, int parallel, int fragments,
+                             boolean resume, int port) {
+        ControlServer server;
+        try {
+            server = new ControlServer(port, parallel, outputDir);
+        }
+        catch (IOException e) {
+            System.err.println("Failed to start the control API on port " + port + ": " + e.getMessage());
+            return 2;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "control-server-shutdown"));
+        server.getQueue().setConcurrentFragments(fragments);
+
+        server.start();
+        System.out.println("Control API listening on http://127.0.0.1:" + server.getPort() + "/api/jobs");
+        System.out.println("Token for the Authorization: Bearer header in " + ControlServer.TOKEN_FILE.getAbsolutePath());
+
+        if (resume) {
+            server.getQueue().restoreUnfinished();
+        }
+        server.getQueue().submit(urls, quality, outputDir);
+
+        try {
+            new CountDownLatch(1).await();
+        }
+        catch (InterruptedException ignored) {}
+        return 0;
+    }
+
+    private static int download(List<String> urls, String quality, String outputDir, int parallel, int fragments,
+                                boolean resume) {
+        List<String> unique = new ArrayList<>();
+        for (String url : urls) {
+            if (!unique.contains(url)) unique.add(url);
+        }
+
+        // Progress is coalesced like in the window, printed once per second
+        HeadlessRunner runner = new HeadlessRunner(System.out);
+        ProgressAggregator aggregator = new ProgressAggregator(runner);
+        DownloadQueue queue = new DownloadQueue(parallel, aggregator);
+        queue.setConcurrentFragments(fragments);
+
+        List<DownloadJob> jobs = new ArrayList<>();
+        if (resume) {
+            jobs.addAll(queue.restoreUnfinished());
+        }
+        jobs.addAll(queue.submit(unique, quality, outputDir));
+        if (jobs.isEmpty()) {
+            System.err.println("No URLs to download.");
+            return 2;
+        }
+        runner.await(jobs, aggregator, queue);
+
+        boolean failed = jobs.stream().anyMatch(job -> job.getState() != DownloadJob.State.COMPLETED
+                && job.getState() != DownloadJob.State.SKIPPED);
+        System.out.println(DownloadQueue.summarize(leaves(jobs)));
+        return failed ? 1 : 0;
+    }
+
+    // Block until every job is done
+    private void await(List<DownloadJob> jobs, ProgressAggregator aggregator, DownloadQueue queue) {
+        // Ctrl+C pauses the running jobs, a later run with --resume continues them
+        Thread pauseOnExit = new Thread(queue::shutdown, "pause-downloads");
+        Runtime.getRuntime().addShutdownHook(pauseOnExit);
+
+        ScheduledExecutorService pulse = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "progress-pulse");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pulse.scheduleAtFixedRate(aggregator::drain, 1, 1, TimeUnit.SECONDS);
+
+        try {
+            synchronized (finishedLock) {
+                while (jobs.stream().anyMatch(job -> !job.isDone())) {
+                    finishedLock.wait(1000);
+                }
+            }
+        }
+        catch (InterruptedException ignored) {}
+        finally {
+            pulse.shutdownNow();
+            Runtime.getRuntime().removeShutdownHook(pauseOnExit);
+        }
+    }
+
+    @Override
+    public void onProgress(DownloadJob job, ProgressEvent event) {
+        out.println("[" + job.getId() + "] " + event.describe());
+    }
+
+    @Override
+    public void onStatus(DownloadJob job, String status) {
+        out.println("[" + job.getId() + "] " + status);
+    }
+
+    @Override
+    public void onFinished(DownloadJob job) {
+        out.println("[" + job.getId() + "] " + job.getState() + ": " + job.getMessage() + " (" + job.getUrl() + ")");
+        synchronized (finishedLock) {
+            finishedLock.notifyAll();
+        }
+    }
+
+    private static List<DownloadJob> leaves(List<DownloadJob> jobs) {
+        List<DownloadJob> leaves = new ArrayList<>();
+        for (DownloadJob job : jobs) {
+            leaves.addAll(job.getLeaves());
+        }
+        return leaves;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+        return args[index];
+    }
+
+    // One URL per line, empty lines and lines starting with # are ignored
+    private static List<String> readUrls(String file) throws IOException {
+        List<String> lines;
+        if (file.equals("-")) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            lines = reader.lines().toList();
+        }
+        else {
+            lines = Files.readAllLines(new File(file).toPath(), StandardCharsets.UTF_8);
+        }
+
+        List<String> urls = new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            urls.addAll(Utils.parseUrls(line));
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,354 @@
+package dev.dreiling.videodl;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class HistoryStore {
+
+    private static final File STORE_FILE = new File(Utils.getAppDataDir(), "history.db");
+    private static final File LEGACY_FILE = new File("history.txt");
+
+    private static final int MAGIC = 0x56444C48; // "VDLH"
+    private static final int VERSION = 2; // 2: records carry the downloaded file
+
+    // Query parameters that don't change which video a URL points to
+    private static final Set<String> IGNORED_PARAMS = Set.of("si", "feature", "pp", "t", "start", "ab_channel");
+    private static final Pattern LEGACY_LINE = Pattern.compile("^\\[([^]]+)] (Download Successful|Download Failed): (.*) \\((\\S+)\\)$");
+    private static final DateTimeFormatter LEGACY_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static volatile HistoryStore instance;
+
+    // file: where a successful download was saved, empty if unknown (records of older versions)
+    public record Entry(String key, String url, String title, long time, boolean successful, String file) {
+        // The file is known and has been deleted or moved since
+        public boolean isFileMissing() {
+            return !file.isEmpty() && !new File(file).exists();
+        }
+    }
+
+    private final File file;
+    private final File legacyFile;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final Map<String, String> keysByFile = new HashMap<>(); // absolute path of a downloaded file -> key
+    private DataOutputStream out;
+    private int version = VERSION;
+
+    // Shared store, loaded on first use
+    public static HistoryStore get() {
+        HistoryStore store = instance;
+        if (store == null) {
+            synchronized (HistoryStore.class) {
+                store = instance;
+                if (store == null) {
+                    store = new HistoryStore(STORE_FILE, LEGACY_FILE);
+                    store.load();
+                    instance = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    // The shared store is get(), own instances are for other files, e.g. in tests
+    HistoryStore(File file, File legacyFile) {
+        this.file = file;
+        this.legacyFile = legacyFile;
+    }
+
+    // O(1) lookup of a successful earlier download of the same video
+    public synchronized boolean isDownloaded(String url) {
+        Entry entry = index.get(normalizeUrl(url));
+        return entry != null && entry.successful;
+    }
+
+    public synchronized Entry find(String url) {
+        return index.get(normalizeUrl(url));
+    }
+
+    // History key of the video a file was saved as, null if no successful download is recorded for it
+    public synchronized String findKeyByFile(File downloaded) {
+        return keysByFile.get(downloaded.getAbsolutePath());
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    // Append a download result to the log and the index, a later result replaces an earlier one
+    public synchronized void record(String url, String title, boolean successful, File downloaded) {
+        Entry entry = new Entry(normalizeUrl(url), url, title, System.currentTimeMillis(), successful,
+                downloaded != null ? downloaded.getAbsolutePath() : "");
+
+        put(entry);
+
+        try {
+            if (out == null) {
+                out = openForAppend();
+            }
+            write(out, entry, version);
+            out.flush();
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write history store: " + e.getMessage());
+        }
+    }
+
+    // Take a record into the index, a failure never hides an earlier success of the same video.
+    // The file of the current entry is indexed too, a file taken over by another video maps to that one.
+    private void put(Entry entry) {
+        Entry previous = index.get(entry.key);
+        if (!entry.successful && previous != null && previous.successful) return;
+
+        index.put(entry.key, entry);
+        if (previous != null && !previous.file.isEmpty()) {
+            keysByFile.remove(previous.file, previous.key);
+        }
+        if (entry.successful && !entry.file.isEmpty()) {
+            keysByFile.put(entry.file, entry.key);
+        }
+    }
+
+    // Read the log into the index, or import the legacy history if there is no log yet
+    void load() {
+        if (!file.exists()) {
+            importLegacyHistory();
+            return;
+        }
+
+        long validLength = 0;
+        CountingInputStream counter;
+        try (DataInputStream in = new DataInputStream(counter = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16)))) {
+            if (in.readInt() != MAGIC) {
+                System.err.println("Unknown history store format: " + file.getAbsolutePath());
+                return;
+            }
+            int stored = in.readInt();
+            if (stored < 1 || stored > VERSION) {
+                System.err.println("Unknown history store version " + stored + ": " + file.getAbsolutePath());
+                return;
+            }
+            version = stored;
+            validLength = counter.count;
+
+            while (true) {
+                Entry entry;
+                try {
+                    entry = read(in, version);
+                }
+                catch (EOFException | UTFDataFormatException e) {
+                    break; // end of log, or a record cut off by a crash
+                }
+                validLength = counter.count;
+                put(entry);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Failed to read history store: " + e.getMessage());
+            return;
+        }
+
+        // Records of an older version are written anew in the current one, with the index as it is now
+        if (version < VERSION) {
+            upgrade();
+            return;
+        }
+
+        // Drop a partly written last record so new records are appended after the last complete one
+        if (validLength > 0 && validLength < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+            catch (IOException e) {
+                System.err.println("Failed to repair history store: " + e.getMessage());
+            }
+        }
+    }
+
+    private void upgrade() {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            for (Entry entry : index.values()) {
+                write(stream, entry, VERSION);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Failed to upgrade history store: " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            version = VERSION;
+        }
+        catch (IOException e) {
+            System.err.println("Failed to upgrade history store: " + e.getMessage());
+        }
+    }
+
+    // First run: take over the entries of the plain text history file
+    private void importLegacyHistory() {
+        if (!legacyFile.isFile()) return;
+
+        try {
+            List<String> lines = Files.readAllLines(legacyFile.toPath(), StandardCharsets.UTF_8);
+            out = openForAppend();
+            for (String line : lines) {
+                Matcher matcher = LEGACY_LINE.matcher(line);
+                if (!matcher.matches()) continue;
+
+                String url = matcher.group(4);
+                boolean successful = matcher.group(2).equals("Download Successful");
+                Entry entry = new Entry(normalizeUrl(url), url, matcher.group(3), parseLegacyTime(matcher.group(1)), successful, "");
+                put(entry);
+                write(out, entry, version);
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            System.err.println("Failed to import history.txt: " + e.getMessage());
+        }
+    }
+
+    private DataOutputStream openForAppend() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        boolean isNew = !file.exists() || file.length() == 0;
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (isNew) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+        }
+        return stream;
+    }
+
+    // Records are appended in the version of the file, until it has been upgraded
+    private static void write(DataOutputStream out, Entry entry, int version) throws IOException {
+        out.writeUTF(entry.key);
+        out.writeUTF(entry.url);
+        out.writeUTF(entry.title);
+        out.writeLong(entry.time);
+        out.writeBoolean(entry.successful);
+        if (version >= 2) out.writeUTF(entry.file);
+    }
+
+    private static Entry read(DataInputStream in, int version) throws IOException {
+        return new Entry(in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(), in.readBoolean(),
+                version >= 2 ? in.readUTF() : "");
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+
+    private static long parseLegacyTime(String timestamp) {
+        try {
+            return LocalDateTime.parse(timestamp, LEGACY_TIMESTAMP).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        catch (Exception e) {
+            return 0;
+        }
+    }
+
+    // Key identifying a video independent of how its URL was written, e.g. youtube:dQw4w9WgXcQ
+    public static String normalizeUrl(String url) {
+        try {
+            URI uri = new URI(url.trim());
+            String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT);
+            if (host.startsWith("www.") || host.startsWith("m.")) {
+                host = host.substring(host.indexOf('.') + 1);
+            }
+            String path = uri.getPath() == null ? "" : uri.getPath();
+
+            // YouTube IDs appear as ?v=, youtu.be/<id>, /shorts/<id>, /live/<id> or /embed/<id>
+            if (host.equals("youtube.com") || host.equals("music.youtube.com") || host.equals("youtu.be")) {
+                String id = host.equals("youtu.be") ? firstSegment(path) : queryParam(uri.getRawQuery(), "v");
+                if (id == null) {
+                    for (String prefix : new String[] { "/shorts/", "/live/", "/embed/" }) {
+                        if (path.startsWith(prefix)) id = firstSegment(path.substring(prefix.length() - 1));
+                    }
+                }
+                if (id != null && !id.isEmpty()) return "youtube:" + id;
+            }
+
+            while (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+
+            StringBuilder key = new StringBuilder(host).append(path);
+            String query = filteredQuery(uri.getRawQuery());
+            if (!query.isEmpty()) {
+                key.append('?').append(query);
+            }
+            return key.toString();
+        }
+        catch (Exception e) {
+            return url.trim();
+        }
+    }
+
+    private static String firstSegment(String path) {
+        String[] parts = path.split("/");
+        for (String part : parts) {
+            if (!part.isEmpty()) return part;
+        }
+        return null;
+    }
+
+    private static String queryParam(String query, String name) {
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) return pair.substring(eq + 1);
+        }
+        return null;
+    }
+
+    // Sorted query without tracking parameters
+    private static String filteredQuery(String query) {
+        if (query == null || query.isEmpty()) return "";
+
+        List<String> kept = new ArrayList<>();
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq > 0 ? pair.substring(0, eq) : pair;
+            if (!name.isEmpty() && !name.startsWith("utm_") && !IGNORED_PARAMS.contains(name)) {
+                kept.add(pair);
+            }
+        }
+        Collections.sort(kept);
+        return String.join("&", kept);
+    }
+}
@@ -0,0 +1,155 @@
+package dev.dreiling.videodl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class HostScheduler {
+
+    // Smallest share handed out, below this yt-dlp mostly waits on its own overhead
+    private static final long MIN_RATE = 50 * 1024;
+
+    private final int maxRunning;
+    private final int maxPerHost;
+    private final long bandwidthLimit;
+
+    private final Map<String, Integer> running = new HashMap<>();
+    private final Map<String, Deque<Waiting>> waiting = new HashMap<>();
+    private final Map<DownloadJob, Long> rates = new HashMap<>();
+    private final Map<String, Long> coolingUntil = new HashMap<>();
+
+    // A job that wasn't started because its host was busy, cancelled ones are dropped (they finish on their own)
+    private record Waiting(DownloadJob job, Runnable retry) {}
+
+    // Limits from application.properties, maxRunning is the number of parallel downloads
+    public HostScheduler(int maxRunning) {
+        this(maxRunning, AppConfig.getInt("videodl.max-per-host", 2),
+                parseRate(AppConfig.getString("videodl.bandwidth-limit", "0")));
+    }
+
+    public HostScheduler(int maxRunning, int maxPerHost, long bandwidthLimit) {
+        this.maxRunning = Math.max(1, maxRunning);
+        this.maxPerHost = maxPerHost > 0 ? maxPerHost : Integer.MAX_VALUE;
+        this.bandwidthLimit = bandwidthLimit;
+    }
+
+    // Claim a slot on the job's host, if the host is busy or cooling down retry runs once it has room again
+    public synchronized boolean tryStart(DownloadJob job, Runnable retry) {
+        String host = Utils.getHost(job.getUrl());
+        int count = running.getOrDefault(host, 0);
+        if (count >= maxPerHost || getCooldown(host) > 0) {
+            waiting.computeIfAbsent(host, h -> new ArrayDeque<>()).add(new Waiting(job, retry));
+            return false;
+        }
+        running.put(host, count + 1);
+        return true;
+    }
+
+    // Bandwidth share in bytes/s for a job that is about to start, 0 if there is no limit.
+    // A running yt-dlp can't change its rate, so the budget is split whenever a job starts:
+    // the part not held by running jobs goes to this job and the ones that can start with it.
+    public synchronized long assignRate(DownloadJob job, int queued) {
+        if (bandwidthLimit <= 0) return 0;
+
+        long assigned = 0;
+        for (long rate : rates.values()) {
+            assigned += rate;
+        }
+        int freeSlots = Math.max(1, maxRunning - rates.size());
+        int sharing = Math.max(1, Math.min(freeSlots, queued + 1));
+
+        // Never less than an even split, so a job started late isn't starved by earlier ones
+        long rate = Math.max((bandwidthLimit - assigned) / sharing, bandwidthLimit / maxRunning);
+        rate = Math.max(rate, Math.min(MIN_RATE, bandwidthLimit));
+        rates.put(job, rate);
+        return rate;
+    }
+
+    // Release the job's host slot and bandwidth share, the next job waiting for the host is retried
+    public void finished(DownloadJob job) {
+        String host = Utils.getHost(job.getUrl());
+        Runnable next = null;
+        synchronized (this) {
+            rates.remove(job);
+
+            int count = running.getOrDefault(host, 0) - 1;
+            if (count > 0) running.put(host, count);
+            else running.remove(host);
+
+            if (getCooldown(host) == 0) {
+                next = pollWaiting(host);
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    // Start nothing new on a host that answered with HTTP 429 for a while, a longer running cooldown is kept.
+    // The jobs waiting for the host are started once it is over.
+    public void coolDown(String host, long millis) {
+        synchronized (this) {
+            if (getCooldown(host) >= millis) return;
+            coolingUntil.put(host, System.currentTimeMillis() + millis);
+        }
+        CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS).execute(() -> wake(host));
+    }
+
+    // Milliseconds left of the host's cooldown, 0 if it may be used
+    public synchronized long getCooldown(String host) {
+        Long until = coolingUntil.get(host);
+        if (until == null) return 0;
+
+        long left = until - System.currentTimeMillis();
+        if (left > 0) return left;
+        coolingUntil.remove(host);
+        return 0;
+    }
+
+    private void wake(String host) {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            // Extended in the meantime, that cooldown wakes the host up later
+            if (getCooldown(host) > 0) return;
+
+            int free = maxPerHost - running.getOrDefault(host, 0);
+            Runnable next;
+            while (free-- > 0 && (next = pollWaiting(host)) != null) {
+                ready.add(next);
+            }
+        }
+        ready.forEach(Runnable::run);
+    }
+
+    // Next job waiting for the host that hasn't been cancelled meanwhile
+    private Runnable pollWaiting(String host) {
+        Deque<Waiting> queue = waiting.get(host);
+        Waiting next = null;
+        while (queue != null && !queue.isEmpty() && next == null) {
+            Waiting candidate = queue.poll();
+            if (!candidate.job().isCancelled()) next = candidate;
+        }
+        if (queue != null && queue.isEmpty()) waiting.remove(host);
+        return next == null ? null : next.retry();
+    }
+
+    // "0" for unlimited, plain bytes/s or with a K, M or G suffix, e.g. 2.5M
+    public static long parseRate(String value) {
+        if (value == null || value.isBlank()) return 0;
+
+        String rate = value.trim().toUpperCase(Locale.ROOT);
+        if (rate.endsWith("/S")) rate = rate.substring(0, rate.length() - 2);
+        long bytes = Utils.parseBytes(rate);
+        if (bytes < 0) {
+            System.err.println("Invalid bandwidth limit: " + value);
+            return 0;
+        }
+        return bytes;
+    }
+}
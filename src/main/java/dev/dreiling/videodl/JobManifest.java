@@ -0,0 +1,123 @@
+package dev.dreiling.videodl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+public class JobManifest {
+
+    private static final File JOBS_DIR = new File(Utils.getAppDataDir(), "jobs");
+
+    private final File file;
+    private final Properties properties = new Properties();
+
+    private JobManifest(File file) {
+        this.file = file;
+    }
+
+    // Manifest of an unfinished job, one file per submit so identical submits never share a manifest
+    public static JobManifest create(DownloadJob job) {
+        return create(job, new File(JOBS_DIR, UUID.randomUUID() + ".properties"));
+    }
+
+    // Manifest of a resumed job, it stays in the file it was loaded from
+    public static JobManifest restore(DownloadJob job, JobManifest previous) {
+        return create(job, previous.file);
+    }
+
+    private static JobManifest create(DownloadJob job, File file) {
+        JobManifest manifest = new JobManifest(file);
+        manifest.properties.setProperty("url", job.getUrl());
+        manifest.properties.setProperty("quality", job.getQuality());
+        manifest.properties.setProperty("outputDir", job.getOutputDir());
+        manifest.properties.setProperty("downloadAgain", String.valueOf(job.isDownloadAgain()));
+        manifest.setSelection(job.getSelection());
+        manifest.save();
+        return manifest;
+    }
+
+    // All jobs that were queued, paused or interrupted when the app last stopped
+    public static List<JobManifest> loadAll() {
+        List<JobManifest> manifests = new ArrayList<>();
+        File[] files = JOBS_DIR.listFiles((dir, name) -> name.endsWith(".properties"));
+        if (files == null) return manifests;
+
+        for (File file : files) {
+            JobManifest manifest = new JobManifest(file);
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                manifest.properties.load(reader);
+            }
+            catch (IOException e) {
+                System.err.println("Failed to read job manifest: " + file.getName() + " - " + e.getMessage());
+                continue;
+            }
+            if (manifest.getUrl() != null && manifest.getOutputDir() != null) {
+                manifests.add(manifest);
+            }
+        }
+        return manifests;
+    }
+
+    public synchronized void set(String key, String value) {
+        if (value != null) {
+            properties.setProperty(key, value);
+        }
+    }
+
+    // Formats the last attempt downloaded, a resumed job continues the same streams
+    public synchronized void setSelection(FormatSelector.Selection selection) {
+        if (selection == null) return;
+        properties.setProperty("formatSpec", selection.formatSpec());
+        if (selection.container() != null) properties.setProperty("container", selection.container());
+        else properties.remove("container");
+    }
+
+    public synchronized void save() {
+        if (!JOBS_DIR.exists()) {
+            JOBS_DIR.mkdirs();
+        }
+
+        // Write a temp file first, a crash while saving never leaves a broken manifest
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            properties.store(writer, "VideoDL unfinished download");
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write job manifest: " + e.getMessage());
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            temp.renameTo(file);
+        }
+    }
+
+    public void delete() {
+        file.delete();
+    }
+
+    public String getUrl() {
+        return properties.getProperty("url");
+    }
+
+    public String getQuality() {
+        return properties.getProperty("quality", "360p");
+    }
+
+    public String getOutputDir() {
+        return properties.getProperty("outputDir");
+    }
+
+    public boolean isDownloadAgain() {
+        return Boolean.parseBoolean(properties.getProperty("downloadAgain", "false"));
+    }
+
+    // Null if no attempt got as far as picking formats
+    public FormatSelector.Selection getSelection() {
+        String formatSpec = properties.getProperty("formatSpec");
+        return formatSpec == null ? null : new FormatSelector.Selection(formatSpec, properties.getProperty("container"));
+    }
+}
@@ -0,0 +1,13 @@
+package dev.dreiling.videodl;
+
+public class Launcher {
+
+    // Entry point of the jar: without arguments the JavaFX window starts, any argument selects
+    // the headless command line mode, which never loads JavaFX
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(HeadlessRunner.run(args));
+        }
+        MainApplication.main(args);
+    }
+}
@@ -0,0 +1,74 @@
+package dev.dreiling.videodl;
+
+import java.io.*;
+import java.util.Arrays;
+
+public class LineReader implements Closeable {
+
+    private final Reader in;
+    private final char[] chunk = new char[8192];
+    private int chunkPos = 0;
+    private int chunkLen = 0;
+
+    private char[] line = new char[256];
+    private int length = 0;
+    private boolean skipLineFeed = false;
+
+    // Reads lines into a reused char buffer instead of creating a String per line
+    public LineReader(InputStream in) {
+        this.in = new InputStreamReader(in);
+    }
+
+    // Reads the next line (\n, \r or \r\n terminated), false at the end of the stream
+    public boolean readLine() throws IOException {
+        length = 0;
+        boolean any = false;
+
+        while (true) {
+            if (chunkPos >= chunkLen) {
+                chunkLen = in.read(chunk, 0, chunk.length);
+                chunkPos = 0;
+                if (chunkLen <= 0) {
+                    chunkLen = 0;
+                    return any;
+                }
+            }
+
+            char c = chunk[chunkPos++];
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (c == '\n') continue;
+            }
+            if (c == '\n') return true;
+            if (c == '\r') {
+                skipLineFeed = true;
+                return true;
+            }
+
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = c;
+            any = true;
+        }
+    }
+
+    // Current line, valid until the next readLine()
+    public char[] buffer() {
+        return line;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(line, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,195 @@
+package dev.dreiling.videodl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class LogWriter {
+
+    private static final File LOG_DIR = new File("log");
+    private static final File HISTORY_FILE = new File("history.txt");
+
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String NEWLINE = System.lineSeparator();
+
+    private enum Target { LOG, HISTORY }
+
+    // Text with the time it was queued, stamped lines get a timestamp prefix when written
+    private record Record(Target target, long time, String prefix, String text) {}
+
+    private static final Record STOP = new Record(null, 0, null, null);
+    private static final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private static final CountDownLatch stopped = new CountDownLatch(1);
+
+    // Owned by the writer thread only
+    private static FileChannel logChannel;
+    private static LocalDate logDate;
+    private static FileChannel historyChannel;
+
+    static {
+        Thread writer = new Thread(LogWriter::run, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(LogWriter::shutdown, "log-writer-shutdown"));
+    }
+
+    // Queue a line for the daily log, returns immediately
+    public static void log(String line) {
+        queue.offer(new Record(Target.LOG, System.currentTimeMillis(), null, line));
+    }
+
+    // Queue a line for the daily log starting with "[Log <timestamp>] "
+    public static void logStamped(String line) {
+        queue.offer(new Record(Target.LOG, System.currentTimeMillis(), "Log ", line));
+    }
+
+    // Queue a line for the history file, written as "[<timestamp>] <line>"
+    public static void history(String line) {
+        queue.offer(new Record(Target.HISTORY, System.currentTimeMillis(), "", line));
+    }
+
+    // Write everything queued so far and close the files, called on JVM shutdown
+    public static void shutdown() {
+        queue.offer(STOP);
+        try {
+            stopped.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ignored) {}
+    }
+
+    // Drain whatever has been queued since the last write and write it in one go per file
+    private static void run() {
+        List<Record> batch = new ArrayList<>();
+        StringBuilder logText = new StringBuilder();
+        StringBuilder historyText = new StringBuilder();
+        boolean running = true;
+
+        try {
+            while (running) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                for (Record record : batch) {
+                    if (record == STOP) {
+                        running = false;
+                        break;
+                    }
+
+                    LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(record.time), ZoneId.systemDefault());
+
+                    if (record.target == Target.HISTORY) {
+                        append(historyText, record, time);
+                        continue;
+                    }
+
+                    // Daily rollover, write what belongs to the previous day before switching files
+                    if (!time.toLocalDate().equals(logDate)) {
+                        writeLog(logText);
+                        openLog(time.toLocalDate());
+                    }
+                    append(logText, record, time);
+                }
+
+                writeLog(logText);
+                writeHistory(historyText);
+                batch.clear();
+            }
+        }
+        catch (InterruptedException ignored) {}
+        finally {
+            close(logChannel);
+            close(historyChannel);
+            stopped.countDown();
+        }
+    }
+
+    private static void append(StringBuilder text, Record record, LocalDateTime time) {
+        if (record.prefix != null) {
+            text.append('[').append(record.prefix);
+            TIMESTAMP.formatTo(time, text);
+            text.append("] ");
+        }
+        text.append(record.text).append(NEWLINE);
+    }
+
+    private static void openLog(LocalDate date) {
+        close(logChannel);
+        logChannel = null;
+        logDate = date;
+
+        try {
+            if (!LOG_DIR.exists()) {
+                LOG_DIR.mkdirs();
+            }
+            File logFile = new File(LOG_DIR, "log-" + DATE.format(date) + ".txt");
+            logChannel = open(logFile);
+        }
+        catch (IOException e) {
+            System.err.println("Failed to open log: " + e.getMessage());
+        }
+    }
+
+    private static void writeLog(StringBuilder text) {
+        if (text.isEmpty()) return;
+
+        try {
+            if (logChannel != null) {
+                write(logChannel, text);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write log: " + e.getMessage());
+        }
+        text.setLength(0);
+    }
+
+    private static void writeHistory(StringBuilder text) {
+        if (text.isEmpty()) return;
+
+        try {
+            if (historyChannel == null) {
+                historyChannel = open(HISTORY_FILE);
+            }
+            write(historyChannel, text);
+        }
+        catch (IOException e) {
+            System.err.println("Failed to write history: " + e.getMessage());
+        }
+        text.setLength(0);
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static void write(FileChannel channel, StringBuilder text) throws IOException {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(text.toString());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        }
+        catch (IOException ignored) {}
+    }
+}
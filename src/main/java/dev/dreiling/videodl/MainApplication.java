@@ -1,21 +1,34 @@
 package dev.dreiling.videodl;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+
 public class MainApplication extends Application {
 
+	// -Dvideodl.startup-probe=true prints the time from JVM start to the first frame and exits,
+	// used by the CDS training run (mvn -Pcds package) and the startup benchmark
+	private static final boolean STARTUP_PROBE = Boolean.parseBoolean(AppConfig.getString("videodl.startup-probe", "false"));
+
+	private MainController controller;
+
 	@Override
 	public void start(Stage primaryStage) {
 		try {
 			FXMLLoader loader = new FXMLLoader(getClass().getResource("/MainView.fxml"));
 			Parent root = loader.load();
+			controller = loader.getController();
 
-			Image image = new Image(this.getClass().getResourceAsStream("/icon.png"));
+			// The icon is decoded on a background thread, the window doesn't wait for it
+			Image image = new Image(getClass().getResource("/icon.png").toExternalForm(), true);
 			primaryStage.getIcons().add(image);
 			primaryStage.setTitle("VideoDL");
 			primaryStage.setResizable(false);
@@ -23,6 +36,15 @@ public class MainApplication extends Application {
 			Scene scene = new Scene(root);
 			scene.getStylesheets().add(getClass().getResource("/style.css").toExternalForm());
 
+			// Everything that isn't needed for the window itself waits until it has been drawn once
+			scene.addPostLayoutPulseListener(new Runnable() {
+				@Override
+				public void run() {
+					scene.removePostLayoutPulseListener(this);
+					onFirstFrame();
+				}
+			});
+
 			primaryStage.setScene(scene);
 			primaryStage.show();
 		}
@@ -31,6 +53,38 @@ public class MainApplication extends Application {
 		}
 	}
 
+	private void onFirstFrame() {
+		if (STARTUP_PROBE) {
+			Instant started = ProcessHandle.current().info().startInstant().orElse(Instant.now());
+			System.out.println("First frame after " + Duration.between(started, Instant.now()).toMillis() + " ms");
+			Platform.exit();
+			return;
+		}
+
+		// Extract yt-dlp and ffmpeg and read the history now, so the first download doesn't wait for it
+		Thread.ofVirtual().name("warmup").start(() -> {
+			try {
+				BinaryCache.get("yt-dlp.exe");
+				BinaryCache.get("ffmpeg.exe");
+			}
+			catch (IOException e) {
+				System.err.println("Failed to prepare executables: " + e.getMessage());
+			}
+			HistoryStore.get();
+		});
+	}
+
+	static boolean isStartupProbe() {
+		return STARTUP_PROBE;
+	}
+
+	@Override
+	public void stop() {
+		if (controller != null) {
+			controller.shutdown();
+		}
+	}
+
 	public static void main(String[] args) {
 		launch(args);
 	}
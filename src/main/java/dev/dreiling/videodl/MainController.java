@@ -1,30 +1,50 @@
 package dev.dreiling.videodl;
 
+import javafx.animation.AnimationTimer;
+import javafx.animation.PauseTransition;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.application.Platform;
 import javafx.scene.control.*;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
-public class MainController {
+public class MainController implements DownloadListener {
+
+    private static final long PROGRESS_FRAME_NANOS = 1_000_000_000L / 30; // UI progress updates at 30 Hz
+    private static final List<String> DEFAULT_QUALITIES = List.of("1080p", "720p", "480p", "360p", "Audio only");
 
     private boolean animationOn = true;
     private boolean isDownloading = false;
     private DirectoryChooser directoryChooser;
     private File outputDirectory;
     private Animations progressAnimation;
+    private DownloadQueue downloadQueue;
+    private ProgressAggregator progressAggregator;
+    private AnimationTimer progressPulse;
+    private List<DownloadJob> batch = List.of();
+    private PauseTransition metadataDelay;
+    private String metadataUrl;
 
     @FXML
     private TextField urlField;
     @FXML
     private ComboBox<String> qualitySelector;
     @FXML
+    private ComboBox<String> fragmentSelector;
+    @FXML
     private Button downloadButton;
     @FXML
     private Button directoryButton;
     @FXML
+    private Button pauseButton;
+    @FXML
+    private CheckBox downloadAgainBox;
+    @FXML
     private Label directoryLabel;
     @FXML
     private Label progressLabel;
@@ -51,20 +71,39 @@ public class MainController {
         }
     }
 
+    // Pause while downloading, partial files are kept. Afterwards this resumes the paused downloads of the batch.
+    @FXML
+    public void handlePause(ActionEvent event) {
+        if (isDownloading) {
+            downloadQueue.pauseAll();
+            progressLabel.setText("Pausing...");
+            pauseButton.setDisable(true);
+            downloadButton.setDisable(true);
+            return;
+        }
+
+        List<DownloadJob> resumed = downloadQueue.resume(batch);
+        if (!resumed.isEmpty()) {
+            startBatch(resumed);
+            progressLabel.setText("Resuming...");
+        }
+    }
+
     @FXML
     public void handleDownload(ActionEvent event) {
 
         // If downloading, this is a cancel request
         if (isDownloading) {
-            DownloadService.cancel();
+            downloadQueue.cancelAll();
             progressLabel.setText("Cancelling...");
             downloadButton.setDisable(true); // prevent double click while cancelling
+            pauseButton.setDisable(true);
             return;
         }
 
-        // Validate URL
-        String url = urlField.getText();
-        if (!isValidUrl(url)) {
+        // Validate URLs (several can be entered separated by spaces, commas or semicolons)
+        List<String> urls = Utils.parseUrls(urlField.getText());
+        if (urls.isEmpty() || !urls.stream().allMatch(Utils::isValidUrl)) {
             progressLabel.setText("Please enter a valid Video URL");
             return;
         }
@@ -79,6 +118,15 @@ public class MainController {
         String quality = setQuality(qualitySelector.getValue());
         Platform.runLater(() -> qualitySelector.setValue(quality));
 
+        // Fragments of HLS/DASH streams fetched in parallel, "Auto" uses the configured value per site
+        downloadQueue.setConcurrentFragments(getConcurrentFragments(fragmentSelector.getValue()));
+
+        // Queue Downloads
+        downloadQueue.removeFinished();
+        startBatch(downloadQueue.submit(urls, quality, outputDirectory.getAbsolutePath(), downloadAgainBox.isSelected()));
+    }
+
+    private void startBatch(List<DownloadJob> jobs) {
         // Stop progress bar animation
         if (animationOn) {
             progressAnimation.stopAndResetStyle();
@@ -88,31 +136,148 @@ public class MainController {
         // Prepare Download
         isDownloading = true;
         qualitySelector.setDisable(true);
+        fragmentSelector.setDisable(true);
+        downloadAgainBox.setDisable(true);
         directoryButton.setDisable(true);
-        downloadButton.setText("Cancel Download");
+        pauseButton.setDisable(false);
+        pauseButton.setText("Pause");
+        downloadButton.setText(jobs.size() > 1 ? "Cancel Downloads" : "Cancel Download");
         progressLabel.setText("Downloading...");
 
-        // Start Download
-        new Thread(() -> {
+        batch = jobs;
+        progressPulse.start();
+    }
+
+    // Called on the FX thread by the progress pulse
+    @Override
+    public void onProgress(DownloadJob job, ProgressEvent event) {
+        if (!isDownloading) return;
+        progressBar.setProgress(getBatchProgress());
+        if (isSingleDownload()) progressLabel.setText(event.describe());
+        else progressLabel.setText(getBatchSummary());
+    }
+
+    // Called on the FX thread by the progress pulse
+    @Override
+    public void onStatus(DownloadJob job, String status) {
+        if (!isDownloading) return;
+        if (isSingleDownload()) progressLabel.setText(status);
+        else progressLabel.setText(getBatchSummary());
+    }
+
+    @Override
+    public void onFinished(DownloadJob job) {
+        Platform.runLater(() -> {
+            if (!batch.contains(job.getRoot())) return;
+
+            progressBar.setProgress(getBatchProgress());
+            if (batch.stream().allMatch(DownloadJob::isDone)) {
+                onDownloadFinished(batch.size() == 1 ? batch.get(0).getMessage() : getBatchResult());
+            }
+            else {
+                progressLabel.setText(getBatchSummary());
+            }
+        });
+    }
+
+    // Show title and resolutions of a single video URL, from the metadata cache or extracted in the background
+    private void loadMetadata(String text) {
+        List<String> urls = Utils.parseUrls(text);
+        String url = urls.size() == 1 && Utils.isValidUrl(urls.get(0)) && !PlaylistExpander.isPlaylistUrl(urls.get(0))
+                ? urls.get(0) : null;
+        metadataUrl = url;
+        if (url == null) {
+            setQualities(DEFAULT_QUALITIES);
+            return;
+        }
+
+        MetadataCache.Info cached = MetadataCache.getCached(url);
+        if (cached != null) {
+            showMetadata(cached);
+            return;
+        }
+
+        if (!isDownloading) progressLabel.setText("Loading video information...");
+        Thread.ofVirtual().name("metadata").start(() -> {
             try {
-                boolean finished = DownloadService.downloadVideo(outputDirectory.getAbsolutePath(), url, quality,
-                        progress -> Platform.runLater(() -> progressBar.setProgress(progress)),
-                        status -> Platform.runLater(() -> progressLabel.setText(status))
-                );
-                if (finished) Platform.runLater(() -> onDownloadFinished("Download completed"));
-                else Platform.runLater(() -> onDownloadFinished("Download cancelled by user"));
+                MetadataCache.Info info = MetadataCache.get(url, null);
+                Platform.runLater(() -> {
+                    if (url.equals(metadataUrl)) showMetadata(info);
+                });
             }
             catch (Exception e) {
-                Platform.runLater(() -> onDownloadFinished(e.getMessage()));
+                Platform.runLater(() -> {
+                    if (url.equals(metadataUrl) && !isDownloading) progressLabel.setText("Waiting...");
+                });
             }
-        }).start();
+        });
+    }
+
+    private void showMetadata(MetadataCache.Info info) {
+        if (isDownloading) return;
+
+        List<String> qualities = new ArrayList<>(info.resolutions());
+        if (info.hasAudio()) qualities.add("Audio only");
+        setQualities(qualities.isEmpty() ? DEFAULT_QUALITIES : qualities);
+        progressLabel.setText(info.title());
+    }
+
+    // Replace the quality options, keeping the selection if the video offers it
+    private void setQualities(List<String> qualities) {
+        if (qualitySelector.getItems().equals(qualities)) return;
+
+        String selected = qualitySelector.getValue();
+        qualitySelector.getItems().setAll(qualities);
+        if (selected != null && qualities.contains(selected)) {
+            qualitySelector.setValue(selected);
+        }
+    }
+
+    // One video, not several URLs or a playlist
+    private boolean isSingleDownload() {
+        return batch.size() == 1 && batch.get(0).getChildren().isEmpty();
+    }
+
+    // Single downloads of the current batch, playlists count with their entries
+    private List<DownloadJob> getBatchDownloads() {
+        List<DownloadJob> downloads = new ArrayList<>();
+        for (DownloadJob job : batch) {
+            downloads.addAll(job.getLeaves());
+        }
+        return downloads;
+    }
+
+    // Average progress over all jobs of the current batch
+    private double getBatchProgress() {
+        double total = 0;
+        for (DownloadJob job : batch) {
+            total += job.getProgress();
+        }
+        return batch.isEmpty() ? 0 : total / batch.size();
+    }
+
+    private String getBatchSummary() {
+        List<DownloadJob> downloads = getBatchDownloads();
+        long running = downloads.stream().filter(job -> job.getState() == DownloadJob.State.RUNNING).count();
+        long done = downloads.stream().filter(DownloadJob::isDone).count();
+        return "Downloading " + running + " of " + downloads.size() + " (" + done + " finished)";
+    }
+
+    private String getBatchResult() {
+        return DownloadQueue.summarize(getBatchDownloads());
     }
 
     private void onDownloadFinished(String message) {
         // Reset GUI after download, cancellation or error
+        progressPulse.stop();
         isDownloading = false;
         qualitySelector.setDisable(false);
+        fragmentSelector.setDisable(false);
+        downloadAgainBox.setDisable(false);
         directoryButton.setDisable(false);
+        boolean paused = getBatchDownloads().stream().anyMatch(job -> job.getState() == DownloadJob.State.PAUSED);
+        pauseButton.setText(paused ? "Resume" : "Pause");
+        pauseButton.setDisable(!paused);
         downloadButton.setDisable(false);
         downloadButton.setText("Download Video");
         progressLabel.setText(message);
@@ -145,27 +310,46 @@ public class MainController {
             directoryLabel.setText("Output: No valid folder selected");
         }
 
-        // Populate quality options
-        qualitySelector.getItems().addAll("1080p", "720p", "480p", "360p", "Audio only");
+        // Create download queue, job updates are coalesced and handed to the controller at a fixed rate
+        progressAggregator = new ProgressAggregator(this);
+        downloadQueue = new DownloadQueue(progressAggregator);
+        progressPulse = new AnimationTimer() {
+            private long lastPulse = 0;
+
+            @Override
+            public void handle(long now) {
+                if (now - lastPulse < PROGRESS_FRAME_NANOS) return;
+                lastPulse = now;
+                progressAggregator.drain();
+            }
+        };
+
+        // Populate quality options, replaced by the resolutions of the video once a URL is entered
+        qualitySelector.getItems().addAll(DEFAULT_QUALITIES);
+        metadataDelay = new PauseTransition(Duration.millis(500));
+        metadataDelay.setOnFinished(e -> loadMetadata(urlField.getText()));
+        urlField.textProperty().addListener((observable, oldText, newText) -> metadataDelay.playFromStart());
+
+        // Populate fragment options
+        fragmentSelector.getItems().addAll("Auto", "1x", "2x", "4x", "8x", "16x");
 
         // Start idle animation
         progressAnimation = new Animations(progressBar);
         progressAnimation.start();
-    }
 
-    // Validate URL
-    public static boolean isValidUrl(String url) {
-        if (url == null || url.isEmpty()) return false;
-
-        try {
-            new java.net.URL(url).toURI(); // Validates both syntax and URI rules
-            return url.startsWith("http://") || url.startsWith("https://");
-        }
-        catch (Exception e) {
-            return false;
+        // Continue downloads that were paused or interrupted when the app last stopped, not in a startup probe run
+        List<DownloadJob> restored = MainApplication.isStartupProbe() ? List.of() : downloadQueue.restoreUnfinished();
+        if (!restored.isEmpty()) {
+            startBatch(restored);
+            progressLabel.setText("Resuming " + restored.size() + " unfinished download" + (restored.size() > 1 ? "s" : "") + "...");
         }
     }
 
+    // Called when the window closes, running downloads are paused and resumed on the next start
+    public void shutdown() {
+        downloadQueue.shutdown();
+    }
+
     // Validate Folder
     public static boolean isValidDirectory(File directory) {
         return directory != null && directory.exists() && directory.isDirectory();
@@ -178,4 +362,12 @@ public class MainController {
         }
         return selected;
     }
+
+    // "4x" -> 4, "Auto" or nothing selected -> 0
+    private int getConcurrentFragments(String selected) {
+        if (selected == null || !selected.endsWith("x")) {
+            return 0;
+        }
+        return Integer.parseInt(selected.substring(0, selected.length() - 1));
+    }
 }
\ No newline at end of file
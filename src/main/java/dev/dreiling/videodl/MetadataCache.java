@@ -0,0 +1,431 @@
+package dev.dreiling.videodl;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class MetadataCache {
+
+    private static final File CACHE_DIR = new File(Utils.getAppDataDir(), "metadata");
+    private static final int MAX_MEMORY_ENTRIES = 64;
+
+    // Downloads start from the cached info JSON (videodl.metadata-cache)
+    static final boolean ENABLED = Boolean.parseBoolean(AppConfig.getString("videodl.metadata-cache", "true"));
+
+    // URLs extracted by one yt-dlp process when many are queued (0 = one process per URL),
+    // at most as many of these processes run as downloads
+    private static final int BATCH_SIZE = AppConfig.getInt("videodl.batch-size", 50);
+    private static final Semaphore batchSlots = new Semaphore(Math.max(1, AppConfig.getInt("videodl.parallel-downloads", 3)));
+    private static final Set<Process> batches = ConcurrentHashMap.newKeySet();
+
+    // Format URLs in the info JSON expire after a few hours, so entries are only trusted for a while
+    private static final long TTL_MS = AppConfig.getInt("videodl.metadata-ttl-minutes", 60) * 60_000L;
+
+    // One entry of the format list, codecs are "none" for a missing stream, numbers -1 if unknown.
+    // size is the file size in bytes, exact or approximated by yt-dlp.
+    public record Format(String id, String ext, String vcodec, String acodec, int height, double fps, double tbr,
+                         long size) {
+        public boolean hasVideo() {
+            return !vcodec.equals("none");
+        }
+
+        public boolean hasAudio() {
+            return !acodec.equals("none");
+        }
+    }
+
+    // What the window and the download need from the info JSON, the JSON itself stays on disk
+    public record Info(String id, String title, double duration, List<String> resolutions, boolean hasAudio,
+                       List<Format> formats, File file, long fetched) {
+        boolean isExpired() {
+            return System.currentTimeMillis() - fetched > TTL_MS || !file.isFile();
+        }
+    }
+
+    // Parsed entries, least recently used first, evicted ones are read back from disk when needed
+    private static final Map<String, Info> memory = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Info> eldest) {
+            return size() > MAX_MEMORY_ENTRIES;
+        }
+    };
+
+    // One extraction per URL at a time, e.g. the window prefetching while the download starts
+    private static final Map<String, CompletableFuture<Info>> loading = new ConcurrentHashMap<>();
+
+    // Info JSON files running downloads read (--load-info-json), with the number of downloads reading each
+    private static final Map<File, Integer> inUse = new ConcurrentHashMap<>();
+
+    // Cached info of a video, extracted with yt-dlp -J if missing or expired.
+    // job may be null, otherwise the extraction is stopped when the job is cancelled.
+    public static Info get(String url, DownloadJob job) throws Exception {
+        String key = HistoryStore.normalizeUrl(url);
+        Info cached = lookup(key);
+        Metrics.metadataLookup(cached != null);
+        if (cached != null) {
+            return cached;
+        }
+
+        while (true) {
+            CompletableFuture<Info> future = new CompletableFuture<>();
+            CompletableFuture<Info> running = loading.putIfAbsent(key, future);
+            if (running != null) {
+                // Null if a batch didn't produce the entry, it is extracted on its own then
+                Info info = await(running, job);
+                if (info != null) return info;
+                continue;
+            }
+
+            try {
+                Info info = fetch(url, key, job);
+                remember(key, info);
+                future.complete(info);
+                return info;
+            }
+            catch (Exception e) {
+                future.completeExceptionally(e);
+                throw e;
+            }
+            finally {
+                loading.remove(key, future);
+            }
+        }
+    }
+
+    // Extract the info of the download about to start (first URL) and the ones queued after it with one yt-dlp
+    // process (--batch-file), so the interpreter and extractors are loaded once per batch instead of once per URL.
+    // Runs if the first URL isn't cached yet or at least half of the others are missing, so batches stay large
+    // and never get far ahead of the queue. Downloads needing an entry while its batch runs wait for that entry
+    // only, entries are stored as yt-dlp prints them.
+    public static void prefetch(List<String> urls) {
+        if (!ENABLED || BATCH_SIZE <= 0 || urls.isEmpty()) return;
+
+        Map<String, String> missing = new LinkedHashMap<>();
+        for (String url : urls.subList(0, Math.min(urls.size(), BATCH_SIZE))) {
+            String key = HistoryStore.normalizeUrl(url);
+            if (!PlaylistExpander.isPlaylistUrl(url) && !loading.containsKey(key) && lookup(key) == null) {
+                missing.putIfAbsent(key, url);
+            }
+        }
+        // A single URL is extracted by its download anyway
+        if (missing.size() < 2) return;
+        if (!missing.containsKey(HistoryStore.normalizeUrl(urls.get(0))) && missing.size() < BATCH_SIZE / 2) return;
+
+        // With a free slot the entries are claimed right away, so the download about to start waits for the batch
+        List<Map.Entry<String, String>> batch = List.copyOf(missing.entrySet());
+        if (batchSlots.tryAcquire()) {
+            Map<String, CompletableFuture<Info>> claimed = claim(batch);
+            Thread.ofVirtual().name("metadata-batch").start(() -> runBatch(batch, claimed));
+        }
+        else {
+            Thread.ofVirtual().name("metadata-batch").start(() -> {
+                try {
+                    batchSlots.acquire();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                runBatch(batch, claim(batch));
+            });
+        }
+    }
+
+    public static int getBatchSize() {
+        return ENABLED ? Math.max(0, BATCH_SIZE) : 0;
+    }
+
+    // Stop running batches, e.g. on app exit
+    public static void stopBatches() {
+        for (Process process : batches) {
+            process.destroy();
+        }
+    }
+
+    private static Info await(CompletableFuture<Info> running, DownloadJob job) throws Exception {
+        while (true) {
+            try {
+                return running.get(250, TimeUnit.MILLISECONDS);
+            }
+            catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+            catch (TimeoutException e) {
+                if (job != null && job.isCancelled()) throw new InterruptedException("Cancelled");
+            }
+        }
+    }
+
+    // Entries are claimed only once the batch has a slot, until then downloads extract their URL themselves
+    private static Map<String, CompletableFuture<Info>> claim(List<Map.Entry<String, String>> chunk) {
+        Map<String, CompletableFuture<Info>> claimed = new HashMap<>();
+        for (Map.Entry<String, String> entry : chunk) {
+            CompletableFuture<Info> future = new CompletableFuture<>();
+            if (lookup(entry.getKey()) == null && loading.putIfAbsent(entry.getKey(), future) == null) {
+                claimed.put(entry.getKey(), future);
+            }
+        }
+        return claimed;
+    }
+
+    // Runs with a batch slot acquired and releases it
+    private static void runBatch(List<Map.Entry<String, String>> chunk, Map<String, CompletableFuture<Info>> claimed) {
+        File list = null;
+        try {
+            if (claimed.isEmpty()) return;
+
+            if (!CACHE_DIR.isDirectory()) {
+                CACHE_DIR.mkdirs();
+            }
+            list = File.createTempFile("batch-", ".txt", CACHE_DIR);
+            List<String> urls = new ArrayList<>();
+            for (Map.Entry<String, String> entry : chunk) {
+                if (claimed.containsKey(entry.getKey())) urls.add(entry.getValue());
+            }
+            Files.write(list.toPath(), urls, StandardCharsets.UTF_8);
+
+            // One JSON document per line and URL, failed URLs only show up as errors
+            ProcessBuilder builder = new ProcessBuilder(
+                    BinaryCache.get("yt-dlp.exe").getAbsolutePath(),
+                    "--dump-json",
+                    "--no-playlist",
+                    "--no-warnings",
+                    "--ignore-errors",
+                    "--batch-file", list.getAbsolutePath()
+            );
+            builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+            Process process = builder.start();
+            batches.add(process);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("{")) store(line, claimed);
+                }
+                process.waitFor();
+            }
+            finally {
+                batches.remove(process);
+            }
+        }
+        catch (Exception e) {
+            System.err.println("Metadata batch failed: " + e.getMessage());
+        }
+        finally {
+            // Entries the batch didn't produce are extracted by their downloads
+            for (Map.Entry<String, CompletableFuture<Info>> entry : claimed.entrySet()) {
+                loading.remove(entry.getKey(), entry.getValue());
+                entry.getValue().complete(null);
+            }
+            if (list != null) list.delete();
+            batchSlots.release();
+        }
+        trimDisk();
+    }
+
+    // Store one entry of a batch under the URL it was requested with
+    private static void store(String line, Map<String, CompletableFuture<Info>> claimed) {
+        try {
+            Map<String, Object> json = Json.parseObject(line);
+            Object url = json.get("original_url") instanceof String original ? original : json.get("webpage_url");
+            if (!(url instanceof String requested)) return;
+
+            String key = HistoryStore.normalizeUrl(requested);
+            CompletableFuture<Info> future = claimed.get(key);
+            if (future == null) return;
+
+            File file = new File(CACHE_DIR, Utils.hashKey(key) + ".json");
+            File temp = File.createTempFile("info-", ".tmp", CACHE_DIR);
+            try {
+                Files.writeString(temp.toPath(), line, StandardCharsets.UTF_8);
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                temp.delete();
+            }
+
+            Info info = parse(json, file, System.currentTimeMillis());
+            remember(key, info);
+            loading.remove(key, future);
+            future.complete(info);
+        }
+        catch (Exception e) {
+            System.err.println("Failed to store video information: " + e.getMessage());
+        }
+    }
+
+    private static void remember(String key, Info info) {
+        synchronized (memory) {
+            memory.put(key, info);
+        }
+    }
+
+    // Cached info without starting yt-dlp, null if there is none
+    public static Info getCached(String url) {
+        return lookup(HistoryStore.normalizeUrl(url));
+    }
+
+    private static Info lookup(String key) {
+        synchronized (memory) {
+            Info info = memory.get(key);
+            if (info != null && !info.isExpired()) return info;
+            memory.remove(key);
+        }
+
+        // Spilled to disk earlier or by a previous run
+        File file = new File(CACHE_DIR, Utils.hashKey(key) + ".json");
+        if (!file.isFile() || System.currentTimeMillis() - file.lastModified() > TTL_MS) {
+            return null;
+        }
+        try {
+            Info info = parse(file, file.lastModified());
+            remember(key, info);
+            return info;
+        }
+        catch (Exception e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    // Keep the info's file while a download reads it, until release()
+    static void use(Info info) {
+        inUse.merge(info.file().getAbsoluteFile(), 1, Integer::sum);
+    }
+
+    static void release(Info info) {
+        inUse.computeIfPresent(info.file().getAbsoluteFile(), (file, count) -> count > 1 ? count - 1 : null);
+    }
+
+    // Drop an entry whose format URLs didn't work anymore
+    public static void invalidate(String url) {
+        String key = HistoryStore.normalizeUrl(url);
+        synchronized (memory) {
+            memory.remove(key);
+        }
+        new File(CACHE_DIR, Utils.hashKey(key) + ".json").delete();
+    }
+
+    private static Info fetch(String url, String key, DownloadJob job) throws Exception {
+        File ytDlpExe = BinaryCache.get("yt-dlp.exe");
+        if (!CACHE_DIR.isDirectory()) {
+            CACHE_DIR.mkdirs();
+        }
+
+        // The JSON goes straight to a file, it can be several megabytes for long videos
+        File file = new File(CACHE_DIR, Utils.hashKey(key) + ".json");
+        File temp = File.createTempFile("info-", ".tmp", CACHE_DIR);
+        try {
+            ProcessBuilder builder = new ProcessBuilder(
+                    ytDlpExe.getAbsolutePath(),
+                    "--dump-single-json",
+                    "--no-playlist",
+                    "--no-warnings",
+                    url
+            );
+            builder.redirectOutput(temp);
+            Process process = builder.start();
+            if (job != null) {
+                job.attachProcess(process);
+            }
+
+            ErrorTail errors = new ErrorTail(10);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    errors.add(line.trim());
+                }
+            }
+
+            int exitCode = process.waitFor();
+            if (job != null && job.isCancelled()) {
+                throw new InterruptedException("Cancelled");
+            }
+            if (exitCode != 0 || temp.length() == 0) {
+                throw new Exception(errors.toMessage());
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            temp.delete();
+        }
+
+        trimDisk();
+        return parse(file, System.currentTimeMillis());
+    }
+
+    private static Info parse(File file, long fetched) throws IOException {
+        return parse(Json.parseObject(Files.readString(file.toPath(), StandardCharsets.UTF_8)), file, fetched);
+    }
+
+    private static Info parse(Map<String, Object> json, File file, long fetched) {
+        List<Format> formats = new ArrayList<>();
+        if (json.get("formats") instanceof List<?> list) {
+            for (Object item : list) {
+                if (!(item instanceof Map<?, ?> format) || !(format.get("format_id") instanceof String id)) continue;
+                formats.add(new Format(id,
+                        format.get("ext") instanceof String ext ? ext : "",
+                        codec(format.get("vcodec"), format.get("height")),
+                        codec(format.get("acodec"), null),
+                        (int) number(format.get("height")),
+                        number(format.get("fps")),
+                        number(format.get("tbr")),
+                        (long) number(format.get("filesize") instanceof Number ? format.get("filesize") : format.get("filesize_approx"))));
+            }
+        }
+
+        // Resolutions offered in the window, highest first, 50/60 fps separately, e.g. 2160p60, 1080p
+        List<Format> videos = new ArrayList<>();
+        boolean hasAudio = false;
+        for (Format format : formats) {
+            if (format.hasVideo() && format.height() > 0) videos.add(format);
+            hasAudio |= format.hasAudio();
+        }
+        videos.sort(Comparator.comparingInt(Format::height).thenComparingDouble(Format::fps).reversed());
+        Set<String> resolutions = new LinkedHashSet<>();
+        for (Format video : videos) {
+            resolutions.add(video.height() + "p" + (video.fps() >= 50 ? "60" : ""));
+        }
+
+        String title = json.get("title") instanceof String t ? t : "Unknown";
+        String id = json.get("id") instanceof String i ? i : null;
+        return new Info(id, title, number(json.get("duration")), List.copyOf(resolutions), hasAudio, List.copyOf(formats),
+                file, fetched);
+    }
+
+    // Codec name, e.g. "avc1" of "avc1.640028", "none" if the stream is missing
+    private static String codec(Object value, Object height) {
+        if (value instanceof String codec && !codec.isEmpty()) {
+            int dot = codec.indexOf('.');
+            return (dot > 0 ? codec.substring(0, dot) : codec).toLowerCase(Locale.ROOT);
+        }
+        // Some extractors leave the codec out, a height still means there is video
+        return height instanceof Number ? "unknown" : "none";
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number number ? number.doubleValue() : -1;
+    }
+
+    // Delete expired entries after every extraction, the cache holds what was extracted within the TTL.
+    // Entries within it are kept for the queued downloads they were prefetched for, and a file a running
+    // download reads is kept even once it has expired.
+    private static void trimDisk() {
+        File[] files = CACHE_DIR.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) return;
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > TTL_MS && !inUse.containsKey(file.getAbsoluteFile())) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package dev.dreiling.videodl;
+
+import jdk.jfr.*;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+
+    public enum Stage {
+        QUEUE_WAIT, EXTRACT, SPAWN, DOWNLOAD, MERGE;
+
+        // Label for metrics, e.g. queue_wait
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+    private static final Map<FailureReason, LongAdder> failures = new EnumMap<>(FailureReason.class);
+    private static final Map<DownloadJob.State, LongAdder> results = new EnumMap<>(DownloadJob.State.class);
+
+    private static final LongAdder started = new LongAdder();
+    private static final LongAdder retries = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final LongAdder metadataHits = new LongAdder();
+    private static final LongAdder metadataMisses = new LongAdder();
+
+    static {
+        for (Stage stage : Stage.values()) timers.put(stage, new Timer());
+        for (FailureReason reason : FailureReason.values()) failures.put(reason, new LongAdder());
+        for (DownloadJob.State state : DownloadJob.State.values()) results.put(state, new LongAdder());
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("dev.dreiling.videodl:type=Downloads"));
+        }
+        catch (Exception e) {
+            System.err.println("Failed to register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // Count, total and max duration of one stage over all jobs
+    private static class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    // A stage of one job being timed, recorded as a JFR event as well
+    public static class Span {
+        private final DownloadJob job;
+        private final Stage stage;
+        private final long start = System.nanoTime();
+        private final StageEvent event = new StageEvent();
+
+        private Span(DownloadJob job, Stage stage) {
+            this.job = job;
+            this.stage = stage;
+            event.begin();
+        }
+
+        public void end() {
+            end(0);
+        }
+
+        public void end(long bytesTransferred) {
+            long nanos = System.nanoTime() - start;
+            record(job, stage, nanos);
+            if (bytesTransferred > 0) {
+                bytes.add(bytesTransferred);
+                job.addBytes(bytesTransferred);
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.jobId = job.getId();
+                event.url = job.getUrl();
+                event.stage = stage.label();
+                event.bytes = bytesTransferred;
+                event.commit();
+            }
+        }
+    }
+
+    public static Span start(DownloadJob job, Stage stage) {
+        return new Span(job, stage);
+    }
+
+    // A stage timed outside a span, e.g. the time a job waited in the queue
+    public static void record(DownloadJob job, Stage stage, long nanos) {
+        timers.get(stage).record(nanos);
+        job.addStageNanos(stage, nanos);
+    }
+
+    public static void jobStarted() {
+        started.increment();
+    }
+
+    public static void retry() {
+        retries.increment();
+    }
+
+    public static void metadataLookup(boolean hit) {
+        (hit ? metadataHits : metadataMisses).increment();
+    }
+
+    // Result of a single download (playlists are counted through their entries), with the stage times as a JFR event
+    public static void jobFinished(DownloadJob job) {
+        results.get(job.getState()).increment();
+        FailureReason reason = job.getState() == DownloadJob.State.FAILED ? FailureReason.classify(job.getMessage()) : null;
+        if (reason != null) {
+            failures.get(reason).increment();
+        }
+
+        JobEvent event = new JobEvent();
+        if (event.shouldCommit()) {
+            event.jobId = job.getId();
+            event.url = job.getUrl();
+            event.state = job.getState().name();
+            event.failureReason = reason != null ? reason.label() : null;
+            event.queueWait = millis(job.getStageNanos(Stage.QUEUE_WAIT));
+            event.extract = millis(job.getStageNanos(Stage.EXTRACT));
+            event.spawn = millis(job.getStageNanos(Stage.SPAWN));
+            event.download = millis(job.getStageNanos(Stage.DOWNLOAD));
+            event.merge = millis(job.getStageNanos(Stage.MERGE));
+            event.bytes = job.getBytes();
+            event.commit();
+        }
+    }
+
+    // Everything in the Prometheus text exposition format
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder(2048);
+
+        header(out, "videodl_jobs_started_total", "counter", "Downloads started");
+        out.append("videodl_jobs_started_total ").append(started.sum()).append('\n');
+
+        header(out, "videodl_jobs_finished_total", "counter", "Downloads finished by result");
+        for (Map.Entry<DownloadJob.State, LongAdder> entry : results.entrySet()) {
+            if (entry.getKey() == DownloadJob.State.QUEUED || entry.getKey() == DownloadJob.State.RUNNING) continue;
+            sample(out, "videodl_jobs_finished_total", "result", entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue().sum());
+        }
+
+        header(out, "videodl_failures_total", "counter", "Failed downloads by reason");
+        for (Map.Entry<FailureReason, LongAdder> entry : failures.entrySet()) {
+            sample(out, "videodl_failures_total", "reason", entry.getKey().label(), entry.getValue().sum());
+        }
+
+        header(out, "videodl_retries_total", "counter", "Download attempts repeated after a failure");
+        out.append("videodl_retries_total ").append(retries.sum()).append('\n');
+
+        header(out, "videodl_downloaded_bytes_total", "counter", "Bytes downloaded");
+        out.append("videodl_downloaded_bytes_total ").append(bytes.sum()).append('\n');
+
+        header(out, "videodl_metadata_cache_lookups_total", "counter", "Metadata cache lookups by result");
+        sample(out, "videodl_metadata_cache_lookups_total", "result", "hit", metadataHits.sum());
+        sample(out, "videodl_metadata_cache_lookups_total", "result", "miss", metadataMisses.sum());
+
+        header(out, "videodl_stage_seconds", "summary", "Time spent per stage of a download");
+        for (Map.Entry<Stage, Timer> entry : timers.entrySet()) {
+            String stage = entry.getKey().label();
+            out.append("videodl_stage_seconds_count{stage=\"").append(stage).append("\"} ").append(entry.getValue().count.sum()).append('\n');
+            out.append("videodl_stage_seconds_sum{stage=\"").append(stage).append("\"} ").append(seconds(entry.getValue().totalNanos.sum())).append('\n');
+        }
+
+        header(out, "videodl_stage_seconds_max", "gauge", "Longest time spent in a stage");
+        for (Map.Entry<Stage, Timer> entry : timers.entrySet()) {
+            out.append("videodl_stage_seconds_max{stage=\"").append(entry.getKey().label()).append("\"} ")
+                    .append(seconds(entry.getValue().maxNanos.get())).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String value, long count) {
+        out.append(name).append('{').append(label).append("=\"").append(value).append("\"} ").append(count).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e9);
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static Map<String, Long> stageMap(java.util.function.ToLongFunction<Timer> value) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Map.Entry<Stage, Timer> entry : timers.entrySet()) {
+            map.put(entry.getKey().label(), value.applyAsLong(entry.getValue()));
+        }
+        return map;
+    }
+
+    @Name("dev.dreiling.videodl.Stage")
+    @Label("Download Stage")
+    @Category("VideoDL")
+    @Description("Metadata extraction, process spawn, download or merge of one job")
+    public static class StageEvent extends Event {
+        @Label("Job ID")
+        long jobId;
+        @Label("URL")
+        String url;
+        @Label("Stage")
+        String stage;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("dev.dreiling.videodl.Job")
+    @Label("Download Finished")
+    @Category("VideoDL")
+    @Description("Result and stage times of one download")
+    public static class JobEvent extends Event {
+        @Label("Job ID")
+        long jobId;
+        @Label("URL")
+        String url;
+        @Label("State")
+        String state;
+        @Label("Failure Reason")
+        String failureReason;
+        @Label("Queue Wait")
+        @Timespan(Timespan.MILLISECONDS)
+        long queueWait;
+        @Label("Extract")
+        @Timespan(Timespan.MILLISECONDS)
+        long extract;
+        @Label("Spawn")
+        @Timespan(Timespan.MILLISECONDS)
+        long spawn;
+        @Label("Download")
+        @Timespan(Timespan.MILLISECONDS)
+        long download;
+        @Label("Merge")
+        @Timespan(Timespan.MILLISECONDS)
+        long merge;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    private static class Bean implements DownloadMetricsMXBean {
+        @Override
+        public long getJobsStarted() {
+            return started.sum();
+        }
+
+        @Override
+        public long getJobsCompleted() {
+            return results.get(DownloadJob.State.COMPLETED).sum();
+        }
+
+        @Override
+        public long getJobsFailed() {
+            return results.get(DownloadJob.State.FAILED).sum();
+        }
+
+        @Override
+        public long getJobsCancelled() {
+            return results.get(DownloadJob.State.CANCELLED).sum();
+        }
+
+        @Override
+        public long getJobsSkipped() {
+            return results.get(DownloadJob.State.SKIPPED).sum();
+        }
+
+        @Override
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        @Override
+        public long getBytesDownloaded() {
+            return bytes.sum();
+        }
+
+        @Override
+        public long getMetadataCacheHits() {
+            return metadataHits.sum();
+        }
+
+        @Override
+        public long getMetadataCacheMisses() {
+            return metadataMisses.sum();
+        }
+
+        @Override
+        public double getAverageBytesPerSecond() {
+            long nanos = timers.get(Stage.DOWNLOAD).totalNanos.sum();
+            return nanos == 0 ? 0 : bytes.sum() / (nanos / 1e9);
+        }
+
+        @Override
+        public Map<String, Long> getStageCounts() {
+            return stageMap(timer -> timer.count.sum());
+        }
+
+        @Override
+        public Map<String, Long> getStageTotalMillis() {
+            return stageMap(timer -> millis(timer.totalNanos.sum()));
+        }
+
+        @Override
+        public Map<String, Long> getStageMaxMillis() {
+            return stageMap(timer -> millis(timer.maxNanos.get()));
+        }
+
+        @Override
+        public Map<String, Long> getFailuresByReason() {
+            Map<String, Long> map = new LinkedHashMap<>();
+            for (Map.Entry<FailureReason, LongAdder> entry : failures.entrySet()) {
+                map.put(entry.getKey().label(), entry.getValue().sum());
+            }
+            return map;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package dev.dreiling.videodl;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+public class PlaylistExpander {
+
+    private static final String MARKER_ENTRY = "[videodl] entry=";
+
+    // URL paths of playlists, channels and albums, expanded before downloading
+    private static final String[] PLAYLIST_PATHS = { "/playlist", "/channel/", "/c/", "/user/", "/sets/", "/album/" };
+
+    // Tabs of a /@name channel page, anything else below the handle (e.g. /@user/video/123) is a single video
+    private static final Set<String> CHANNEL_TABS = Set.of("videos", "shorts", "streams", "playlists", "featured",
+            "podcasts", "releases");
+
+    // Guess from the URL alone, so single videos never pay for an extra process
+    public static boolean isPlaylistUrl(String url) {
+        String lower = url.toLowerCase();
+
+        // A video inside a playlist (watch?v=...&list=...) is downloaded as a single video
+        if ((lower.contains("?v=") || lower.contains("&v=")) && !lower.contains("/playlist")) {
+            return false;
+        }
+        if (lower.contains("list=")) {
+            return true;
+        }
+        for (String path : PLAYLIST_PATHS) {
+            if (lower.contains(path)) return true;
+        }
+        return isChannelHandle(lower);
+    }
+
+    // /@name or /@name/<tab>, the channel of a handle
+    private static boolean isChannelHandle(String lower) {
+        int start = lower.indexOf("/@");
+        if (start < 0) return false;
+
+        String path = lower.substring(start + 2).split("[?#]", 2)[0];
+        String[] segments = path.split("/");
+        if (segments[0].isEmpty()) return false;
+        return segments.length == 1 || CHANNEL_TABS.contains(segments[1]);
+    }
+
+    // List the entry URLs of a playlist or channel without extracting each video (--flat-playlist).
+    // Null if the URL turned out to be a single video, its only result then has no playlist index.
+    public static List<String> expand(DownloadJob job) throws Exception {
+        File ytDlpExe = BinaryCache.get("yt-dlp.exe");
+
+        ProcessBuilder builder = new ProcessBuilder(
+                ytDlpExe.getAbsolutePath(),
+                "--flat-playlist",
+                "--no-warnings",
+                "--print", MARKER_ENTRY + "%(playlist_index)s %(webpage_url,url)s",
+                job.getUrl()
+        );
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        job.attachProcess(process);
+
+        List<String> entries = new ArrayList<>();
+        boolean single = false;
+        ErrorTail errors = new ErrorTail(10);
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith(MARKER_ENTRY)) {
+                    String[] entry = line.substring(MARKER_ENTRY.length()).split(" ", 2);
+                    if (entry[0].equals("NA")) {
+                        single = true;
+                    }
+                    else if (entry.length == 2 && (entry[1].startsWith("http://") || entry[1].startsWith("https://"))) {
+                        entries.add(entry[1]);
+                    }
+                }
+                else {
+                    errors.add(line);
+                }
+            }
+        }
+
+        int exitCode = process.waitFor();
+        if (job.isCancelled()) return List.of();
+        if (single && entries.isEmpty()) return null;
+        if (exitCode != 0 && entries.isEmpty()) {
+            throw new Exception(errors.toMessage());
+        }
+        return entries;
+    }
+}
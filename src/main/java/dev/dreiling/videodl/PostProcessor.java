@@ -0,0 +1,104 @@
+package dev.dreiling.videodl;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class PostProcessor {
+
+    // ffmpeg work is CPU and disk bound, so it runs on its own pool sized to the cores,
+    // separate from the download slots which mostly wait on the network
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, AppConfig.getInt("videodl.postprocess-threads", Runtime.getRuntime().availableProcessors())),
+            Thread.ofPlatform().name("postprocess-", 1).daemon().factory());
+
+    // Merge the fetched streams into one file without re-encoding, then rename it to the title.
+    // Completes with null if the job was cancelled or paused while merging.
+    public static CompletableFuture<File> merge(DownloadJob job, DownloadService.Fetched fetched) {
+        return CompletableFuture.supplyAsync(() -> {
+            Metrics.Span merge = Metrics.start(job, Metrics.Stage.MERGE);
+            try {
+                return runMerge(job, fetched);
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            finally {
+                merge.end();
+            }
+        }, executor);
+    }
+
+    private static File runMerge(DownloadJob job, DownloadService.Fetched fetched) throws Exception {
+        if (job.isCancelled()) return null;
+
+        File ffmpegExe = BinaryCache.get("ffmpeg.exe");
+        // Merged next to its final place, so it is moved there by a rename on the same drive, even if the
+        // streams are in the scratch folder
+        File merged = new File(job.getOutputDir(), fetched.videoId() + "." + fetched.container());
+        File temp = new File(job.getOutputDir(), fetched.videoId() + ".temp." + fetched.container());
+
+        List<String> command = new ArrayList<>(List.of(ffmpegExe.getAbsolutePath(), "-hide_banner", "-nostdin",
+                "-loglevel", "error", "-y"));
+        for (File stream : fetched.streams()) {
+            command.add("-i");
+            command.add(stream.getAbsolutePath());
+        }
+        // Every video and audio stream as it is, whichever input it is in
+        for (int i = 0; i < fetched.streams().size(); i++) {
+            command.add("-map");
+            command.add(i + ":v?");
+            command.add("-map");
+            command.add(i + ":a?");
+        }
+        command.add("-c");
+        command.add("copy");
+        if (fetched.container().equals("mp4")) {
+            command.add("-movflags");
+            command.add("+faststart");
+        }
+        command.add(temp.getAbsolutePath());
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        job.attachProcess(process);
+
+        // With -loglevel error only problems are printed, the last one explains a failure
+        String lastLine = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                lastLine = line;
+                LogWriter.log("[" + job.getId() + "] " + line);
+            }
+        }
+
+        int exitCode = process.waitFor();
+        if (job.isCancelled()) {
+            Utils.deleteWhenReleased(temp, Utils.FILE_RELEASE_TIMEOUT_MS);
+            return null;
+        }
+        if (exitCode != 0) {
+            temp.delete();
+            throw new Exception("Merging failed: " + (lastLine != null ? lastLine : "ffmpeg exit code " + exitCode));
+        }
+
+        // Streams are only removed once the merged file is complete
+        Files.move(temp.toPath(), merged.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (File stream : fetched.streams()) {
+            stream.delete();
+        }
+        File finished = DownloadService.renameToTitle(merged, fetched.title(), fetched.videoId(), job.getUrl());
+        Utils.writeHistory(0, fetched.title(), job.getUrl(), finished);
+        return finished;
+    }
+}
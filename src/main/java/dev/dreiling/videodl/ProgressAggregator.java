@@ -0,0 +1,87 @@
+package dev.dreiling.videodl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ProgressAggregator implements DownloadListener {
+
+    private final DownloadListener target;
+    private final Map<DownloadJob, Slot> slots = new ConcurrentHashMap<>();
+
+    // Collects progress from download threads, target gets the latest state per job on drain()
+    public ProgressAggregator(DownloadListener target) {
+        this.target = target;
+    }
+
+    // A progress update is newer than any earlier status line, so it replaces it.
+    // Called for every line yt-dlp prints, the values go into the slot's own event without allocating.
+    @Override
+    public void onProgress(DownloadJob job, ProgressEvent event) {
+        Slot slot = slot(job);
+        synchronized (slot) {
+            slot.event.set(event);
+            slot.hasEvent = true;
+            slot.status = null;
+            slot.dirty = true;
+        }
+    }
+
+    @Override
+    public void onStatus(DownloadJob job, String status) {
+        Slot slot = slot(job);
+        synchronized (slot) {
+            slot.status = status;
+            slot.dirty = true;
+        }
+    }
+
+    // Finished jobs are rare, they are passed on right away. A drain publishing the job's slot is waited for,
+    // so nothing of the job is published after its final state.
+    @Override
+    public void onFinished(DownloadJob job) {
+        Slot slot = slots.remove(job);
+        if (slot != null) {
+            synchronized (slot) {
+                slot.dirty = false;
+            }
+        }
+        target.onFinished(job);
+    }
+
+    // Publish the latest state of every job that changed since the last call, called at a fixed rate.
+    // Only here the event is copied, the target may keep it.
+    public void drain() {
+        for (Map.Entry<DownloadJob, Slot> entry : slots.entrySet()) {
+            DownloadJob job = entry.getKey();
+            Slot slot = entry.getValue();
+            synchronized (slot) {
+                // A finished job's slot is gone, one created by a late update after that is dropped too
+                if (job.isDone()) {
+                    slots.remove(job, slot);
+                    continue;
+                }
+                if (!slot.dirty) continue;
+                slot.dirty = false;
+
+                if (slot.hasEvent) {
+                    target.onProgress(job, slot.event.copy());
+                }
+                if (slot.status != null) {
+                    target.onStatus(job, slot.status);
+                }
+            }
+        }
+    }
+
+    private Slot slot(DownloadJob job) {
+        return slots.computeIfAbsent(job, key -> new Slot());
+    }
+
+    // Latest-value slot: writers overwrite, the reader only sees the newest state
+    private static final class Slot {
+        final ProgressEvent event = new ProgressEvent();
+        boolean hasEvent;
+        String status;
+        boolean dirty;
+    }
+}
@@ -0,0 +1,183 @@
+package dev.dreiling.videodl;
+
+public class ProgressEvent {
+
+    public enum Phase { EXTRACT, DOWNLOAD, MERGE, POST_PROCESS }
+
+    private Phase phase = Phase.EXTRACT;
+    private long downloadedBytes = -1;
+    private long totalBytes = -1;
+    private double speed = -1;
+    private long eta = -1;
+    private int fragmentIndex = -1;
+    private int fragmentCount = -1;
+    private int concurrentFragments = 1;
+    private boolean finished = false;
+
+    // Mutable and reused by the parser for every line, listeners keep a copy() if they hold on to it
+    public ProgressEvent copy() {
+        ProgressEvent copy = new ProgressEvent();
+        copy.set(this);
+        return copy;
+    }
+
+    // Take over the values of another event, for holders that reuse one instance
+    void set(ProgressEvent other) {
+        phase = other.phase;
+        downloadedBytes = other.downloadedBytes;
+        totalBytes = other.totalBytes;
+        speed = other.speed;
+        eta = other.eta;
+        fragmentIndex = other.fragmentIndex;
+        fragmentCount = other.fragmentCount;
+        concurrentFragments = other.concurrentFragments;
+        finished = other.finished;
+    }
+
+    // Clear the values of the current file, the phase is kept
+    void resetProgress() {
+        downloadedBytes = -1;
+        totalBytes = -1;
+        speed = -1;
+        eta = -1;
+        fragmentIndex = -1;
+        fragmentCount = -1;
+        finished = false;
+    }
+
+    // Progress between 0 and 1, -1 if unknown
+    public double getProgress() {
+        if (finished) return 1.0;
+        if (downloadedBytes >= 0 && totalBytes > 0) {
+            return Math.min(1.0, (double) downloadedBytes / totalBytes);
+        }
+        if (fragmentIndex >= 0 && fragmentCount > 0) {
+            return Math.min(1.0, (double) fragmentIndex / fragmentCount);
+        }
+        return -1;
+    }
+
+    // Human readable status, e.g. "Downloading 42.1% of 5.00 MiB at 1.23 MiB/s, ETA 00:10"
+    public String describe() {
+        return switch (phase) {
+            case EXTRACT -> "Extracting video information...";
+            case MERGE -> "Merging video and audio...";
+            case POST_PROCESS -> "Post-processing...";
+            case DOWNLOAD -> describeDownload();
+        };
+    }
+
+    private String describeDownload() {
+        StringBuilder text = new StringBuilder("Downloading");
+
+        double progress = getProgress();
+        if (progress >= 0) {
+            text.append(String.format(" %.1f%%", progress * 100));
+        }
+        if (totalBytes > 0) {
+            text.append(" of ").append(formatBytes(totalBytes));
+        }
+        if (speed > 0) {
+            text.append(" at ").append(formatBytes((long) speed)).append("/s");
+        }
+        if (eta >= 0) {
+            text.append(String.format(", ETA %02d:%02d", eta / 60, eta % 60));
+        }
+        if (fragmentCount > 0) {
+            text.append(", fragments ").append(Math.max(0, fragmentIndex)).append('/').append(fragmentCount);
+            int inFlight = getFragmentsInFlight();
+            if (inFlight > 0) {
+                text.append(" (").append(inFlight).append(" in flight)");
+            }
+        }
+        return text.toString();
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.2f KiB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.2f MiB", bytes / (1024.0 * 1024));
+        return String.format("%.2f GiB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    void setPhase(Phase phase) {
+        this.phase = phase;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    void setDownloadedBytes(long downloadedBytes) {
+        this.downloadedBytes = downloadedBytes;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    // Bytes per second, -1 if unknown
+    public double getSpeed() {
+        return speed;
+    }
+
+    void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    // Seconds left, -1 if unknown
+    public long getEta() {
+        return eta;
+    }
+
+    void setEta(long eta) {
+        this.eta = eta;
+    }
+
+    public int getFragmentIndex() {
+        return fragmentIndex;
+    }
+
+    void setFragmentIndex(int fragmentIndex) {
+        this.fragmentIndex = fragmentIndex;
+    }
+
+    public int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    void setFragmentCount(int fragmentCount) {
+        this.fragmentCount = fragmentCount;
+    }
+
+    // Fragments fetched at the same time (yt-dlp --concurrent-fragments)
+    public int getConcurrentFragments() {
+        return concurrentFragments;
+    }
+
+    void setConcurrentFragments(int concurrentFragments) {
+        this.concurrentFragments = concurrentFragments;
+    }
+
+    // Fragments being fetched right now, fragmentIndex counts the completed ones
+    public int getFragmentsInFlight() {
+        if (finished || fragmentCount <= 0) return 0;
+        return Math.max(0, Math.min(concurrentFragments, fragmentCount - Math.max(0, fragmentIndex)));
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    void setFinished(boolean finished) {
+        this.finished = finished;
+    }
+}
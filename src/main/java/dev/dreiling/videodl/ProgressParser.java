@@ -0,0 +1,178 @@
+package dev.dreiling.videodl;
+
+public class ProgressParser {
+
+    public static final String PREFIX = "[videodl-progress]";
+
+    // Machine readable progress line for yt-dlp (--progress-template), fields are separated by spaces and
+    // missing values are printed as NA
+    public static final String TEMPLATE = "download:" + PREFIX
+            + " %(progress.status)s"
+            + " %(progress.downloaded_bytes)s"
+            + " %(progress.total_bytes)s"
+            + " %(progress.total_bytes_estimate)s"
+            + " %(progress.speed)s"
+            + " %(progress.eta)s"
+            + " %(progress.fragment_index)s"
+            + " %(progress.fragment_count)s";
+
+    private static final String[] DOWNLOAD_TAGS = { "download", "hlsnative", "dashsegments" };
+    private static final String[] MERGE_TAGS = { "Merger" };
+    private static final String[] POST_PROCESS_TAGS = { "ExtractAudio", "VideoConvertor", "VideoRemuxer",
+            "EmbedThumbnail", "EmbedSubtitle", "Metadata", "MoveFiles", "ffmpeg", "ThumbnailsConvertor",
+            "SponsorBlock", "ModifyChapters", "Fixup" };
+    private static final String[] IGNORED_TAGS = { "videodl" };
+
+    private int pos;
+
+    public boolean parse(String line, ProgressEvent event) {
+        return parse(line.toCharArray(), 0, line.length(), event);
+    }
+
+    // Parse one output line in a single pass without creating strings.
+    // Returns true for progress lines, other lines only move the event to the phase their [tag] belongs to.
+    public boolean parse(char[] buf, int start, int end, ProgressEvent event) {
+        pos = skipSpaces(buf, start, end);
+
+        if (startsWith(buf, pos, end, PREFIX)) {
+            pos += PREFIX.length();
+            parseProgressFields(buf, end, event);
+            return true;
+        }
+
+        if (pos < end && buf[pos] == '[') {
+            int tagStart = pos + 1;
+            int tagEnd = tagStart;
+            while (tagEnd < end && buf[tagEnd] != ']') tagEnd++;
+            if (tagEnd < end) {
+                updatePhase(buf, tagStart, tagEnd, event);
+            }
+        }
+        return false;
+    }
+
+    private void parseProgressFields(char[] buf, int end, ProgressEvent event) {
+        event.setPhase(ProgressEvent.Phase.DOWNLOAD);
+
+        int tokenStart = nextToken(buf, end);
+        event.setFinished(startsWith(buf, tokenStart, pos, "finished"));
+
+        long downloaded = parseLong(buf, nextToken(buf, end), pos);
+        long total = parseLong(buf, nextToken(buf, end), pos);
+        long estimate = parseLong(buf, nextToken(buf, end), pos);
+        double speed = parseDecimal(buf, nextToken(buf, end), pos);
+        long eta = parseLong(buf, nextToken(buf, end), pos);
+        long fragmentIndex = parseLong(buf, nextToken(buf, end), pos);
+        long fragmentCount = parseLong(buf, nextToken(buf, end), pos);
+
+        event.setDownloadedBytes(downloaded);
+        event.setTotalBytes(total > 0 ? total : estimate);
+        event.setSpeed(speed);
+        event.setEta(eta);
+        event.setFragmentIndex((int) fragmentIndex);
+        event.setFragmentCount((int) fragmentCount);
+    }
+
+    private void updatePhase(char[] buf, int tagStart, int tagEnd, ProgressEvent event) {
+        if (matchesAny(buf, tagStart, tagEnd, IGNORED_TAGS)) return;
+
+        ProgressEvent.Phase phase;
+        if (matchesAny(buf, tagStart, tagEnd, DOWNLOAD_TAGS)) phase = ProgressEvent.Phase.DOWNLOAD;
+        else if (matchesAny(buf, tagStart, tagEnd, MERGE_TAGS)) phase = ProgressEvent.Phase.MERGE;
+        else if (matchesAny(buf, tagStart, tagEnd, POST_PROCESS_TAGS)) phase = ProgressEvent.Phase.POST_PROCESS;
+        else phase = ProgressEvent.Phase.EXTRACT; // site extractors, e.g. [youtube] or [info]
+
+        if (phase != event.getPhase()) {
+            // A new extraction starts a new file (playlist entries), forget the values of the previous one
+            if (phase == ProgressEvent.Phase.EXTRACT) {
+                event.resetProgress();
+            }
+            event.setPhase(phase);
+        }
+    }
+
+    // Moves pos to the end of the next token and returns its start
+    private int nextToken(char[] buf, int end) {
+        int tokenStart = skipSpaces(buf, pos, end);
+        int tokenEnd = tokenStart;
+        while (tokenEnd < end && buf[tokenEnd] != ' ') tokenEnd++;
+        pos = tokenEnd;
+        return tokenStart;
+    }
+
+    // Integer value of a token, floats are truncated, -1 for NA or anything unparsable
+    private static long parseLong(char[] buf, int start, int end) {
+        if (start >= end) return -1;
+
+        long value = 0;
+        int i = start;
+        for (; i < end && buf[i] != '.'; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return i == start ? -1 : value;
+    }
+
+    // Decimal value of a token like 1234.56 or 1.5e-05, -1 for NA or anything unparsable
+    private static double parseDecimal(char[] buf, int start, int end) {
+        if (start >= end) return -1;
+
+        double value = 0;
+        double scale = 0;
+        int digits = 0;
+        int i = start;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (scale == 0) {
+                    value = value * 10 + (c - '0');
+                }
+                else {
+                    value += (c - '0') * scale;
+                    scale /= 10;
+                }
+            }
+            else if (c == '.' && scale == 0) {
+                scale = 0.1;
+            }
+            else if (c == 'e' || c == 'E') {
+                break;
+            }
+            else {
+                return -1;
+            }
+        }
+        if (digits == 0) return -1;
+
+        if (i < end) {
+            boolean negative = i + 1 < end && buf[i + 1] == '-';
+            int expStart = i + 1 + (negative || (i + 1 < end && buf[i + 1] == '+') ? 1 : 0);
+            long exponent = parseLong(buf, expStart, end);
+            if (exponent < 0) return -1;
+            value *= Math.pow(10, negative ? -exponent : exponent);
+        }
+        return value;
+    }
+
+    private static int skipSpaces(char[] buf, int start, int end) {
+        while (start < end && Character.isWhitespace(buf[start])) start++;
+        return start;
+    }
+
+    private static boolean matchesAny(char[] buf, int start, int end, String[] tags) {
+        for (String tag : tags) {
+            if (startsWith(buf, start, end, tag)) return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWith(char[] buf, int start, int end, String prefix) {
+        if (end - start < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[start + i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+}
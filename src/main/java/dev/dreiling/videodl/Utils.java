@@ -1,72 +1,81 @@
 package dev.dreiling.videodl;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
 
 public class Utils {
 
-    private static final File LOG_DIR = new File("log");
-    private static final File HISTORY_FILE = new File("history.txt");
+    // How long deleting a partial file is retried while it is still in use
+    static final long FILE_RELEASE_TIMEOUT_MS = 5000;
 
-    // Extracts a native executable from the jar resource /bin to a temporary file
-    public static File extractExecutable(String exeName) throws IOException {
-        String resourcePath = "/bin/" + exeName;
-        InputStream in = Utils.class.getResourceAsStream(resourcePath);
-        if (in == null) {
-            throw new IOException("Resource not found: " + resourcePath);
+    // Per-user folder for caches and app state (%LOCALAPPDATA%\VideoDL on Windows, ~/.videodl elsewhere)
+    public static File getAppDataDir() {
+        String localAppData = System.getenv("LOCALAPPDATA");
+        if (localAppData != null && !localAppData.isEmpty()) {
+            return new File(localAppData, "VideoDL");
         }
+        return new File(System.getProperty("user.home"), ".videodl");
+    }
 
-        // Create a temp file with .exe suffix
-        File tempFile = File.createTempFile(exeName, ".exe");
-        tempFile.deleteOnExit();
-
-        // Copy resource contents to the temp file
-        Files.copy(in, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        in.close();
-
-        // Make sure it is executable (Windows normally doesn't need this, but no harm)
-        tempFile.setExecutable(true);
-
-        return tempFile;
+    // Short file name safe key for any text (first 12 bytes of its SHA-256 in hex)
+    public static String hashKey(String text) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            byte[] hash = sha256.digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 12);
+        }
+        catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(text.hashCode());
+        }
     }
 
-    // Get Video title from YT-DLP
-    public static String getVideoTitle(File ytDlpExe, String videoUrl) throws IOException, InterruptedException {
-        ProcessBuilder builder = new ProcessBuilder(
-                ytDlpExe.getAbsolutePath(),
-                "--get-title",
-                "--no-warnings",
-                "--no-playlist",
-                videoUrl
-        );
-
-        builder.redirectErrorStream(true);
-        Process process = builder.start();
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-
-        String line;
-        String title = null;
-
-        while ((line = reader.readLine()) != null) {
-            line = line.trim();
-            // The title should be the first non-empty line
-            if (!line.isEmpty()) {
-                title = line;
-                break;
+    // Split the URL field into single URLs
+    public static List<String> parseUrls(String text) {
+        List<String> urls = new ArrayList<>();
+        if (text == null) return urls;
+
+        for (String part : text.split("[\\s,;]+")) {
+            if (!part.isEmpty() && !urls.contains(part)) {
+                urls.add(part);
             }
         }
+        return urls;
+    }
 
-        int exitCode = process.waitFor();
+    // Validate URL
+    public static boolean isValidUrl(String url) {
+        if (url == null || url.isEmpty()) return false;
 
-        if (exitCode == 0 && title != null && !title.toLowerCase().startsWith("warning")) {
-            return title;
+        try {
+            java.net.URI uri = new java.net.URI(url);
+            String scheme = uri.getScheme();
+            return ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) && uri.getHost() != null;
         }
-        else {
-            return "Unknown";
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Host a URL is downloaded from, used to limit downloads per site (youtu.be counts as youtube.com)
+    public static String getHost(String url) {
+        try {
+            String host = new java.net.URI(url.trim()).getHost();
+            if (host == null) return "";
+            host = host.toLowerCase(java.util.Locale.ROOT);
+            if (host.startsWith("www.") || host.startsWith("m.")) {
+                host = host.substring(host.indexOf('.') + 1);
+            }
+            return host.equals("youtu.be") ? "youtube.com" : host;
+        }
+        catch (Exception e) {
+            return "";
         }
     }
 
@@ -76,19 +85,52 @@ public class Utils {
             return "Unknown";
         }
 
-        // Remove hashtags (e.g., #tag)
-        title = title.replaceAll("#\\S+", "");
+        // One pass over the characters, titles are sanitized for every download and every playlist entry
+        int length = title.length();
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = title.charAt(i);
 
-        // Remove trailing .f### (e.g., .f606)
-        title = title.replaceAll("\\.f\\d+$", "");
+            // Remove hashtags (e.g., #tag) up to the next whitespace
+            if (c == '#' && i + 1 < length && !isWhitespace(title.charAt(i + 1))) {
+                while (i + 1 < length && !isWhitespace(title.charAt(i + 1))) i++;
+                continue;
+            }
 
-        // Replace invalid filename characters on Windows and others
-        title = title.replaceAll("[\\\\/:*?\"<>|]", "");
+            // Collapse multiple spaces, none at the start
+            if (isWhitespace(c)) {
+                if (!result.isEmpty() && result.charAt(result.length() - 1) != ' ') result.append(' ');
+                continue;
+            }
 
-        // Collapse multiple spaces and trim
-        title = title.replaceAll("\\s+", " ").trim();
+            // Remove invalid filename characters on Windows and others
+            if (c < ' ' || c == '\\' || c == '/' || c == ':' || c == '*' || c == '?' || c == '"'
+                    || c == '<' || c == '>' || c == '|') {
+                continue;
+            }
+            result.append(c);
+        }
+
+        // Remove trailing .f### (e.g., .f606) and the space before it
+        int end = trimEnd(result, result.length());
+        int digits = end;
+        while (digits > 0 && result.charAt(digits - 1) >= '0' && result.charAt(digits - 1) <= '9') digits--;
+        if (digits < end && digits >= 2 && result.charAt(digits - 1) == 'f' && result.charAt(digits - 2) == '.') {
+            end = trimEnd(result, digits - 2);
+        }
+        result.setLength(end);
 
-        return title;
+        return result.isEmpty() ? "Unknown" : result.toString();
+    }
+
+    // Whitespace as in \s of a regex
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static int trimEnd(CharSequence text, int end) {
+        while (end > 0 && text.charAt(end - 1) == ' ') end--;
+        return end;
     }
 
     // Format Selected Quality
@@ -99,25 +141,14 @@ public class Utils {
             case "480p" -> "bestvideo[height<=480]+bestaudio/best[height<=480]";
             case "360p" -> "bestvideo[height<=360]+bestaudio/best[height<=360]";
             case "Audio only" -> "bestaudio";
-            default -> "best[height<=360]";
-        };
-    }
-
-    // Remove fragment information from download messages
-    public static String cleanStatus(String line) {
-        if (line == null || line.isEmpty()) {
-            return "";
-        }
-
-        if (line.startsWith("[download]")) {
-            int fragIndex = line.indexOf("frag");
-
-            if (fragIndex != -1) {
-                return line.substring(0, fragIndex-2).trim();
+            default -> {
+                // Other resolutions offered by the metadata of a video, e.g. 1440p or 1080p60
+                int height = FormatSelector.parseHeight(quality);
+                if (height <= 0) yield "bestvideo+bestaudio/best";
+                String filter = "[height<=" + height + "]" + (quality.endsWith("p60") ? "" : "[fps<=30]");
+                yield "bestvideo" + filter + "+bestaudio/best" + filter + "/best[height<=" + height + "]";
             }
-        }
-
-        return line;
+        };
     }
 
     // Filter the log for relevant messages
@@ -151,109 +182,100 @@ public class Utils {
         return "";
     }
 
-    // Extract the error occurred during download
-    public static String extractErrorMessage(String output) {
-        // Find lines containing "error" or "unable"
-        StringBuilder errors = new StringBuilder();
-        for (String line : output.split("\\R")) {
-            if (line.toLowerCase().contains("error")) {
-                errors.append(line);
+    // Cleanup Partial Files
+    public static void cleanupPartialFiles(Collection<File> destinations, int fragmentCount) {
+        for (File destination : destinations) {
+            String path = destination.getPath();
+
+            // The file itself (a finished stream), its .part and .ytdl and the fragments of a fragmented
+            // download (.part-Frag1 or .part-Frag1.part while it is written). Every number up to fragmentCount
+            // is tried, gaps left by fragments fetched in parallel included, and on from there until the first
+            // number missing. Only these names are tried, the folder is never listed.
+            deletePartialFile(destination);
+            deletePartialFile(new File(path + ".part"));
+            deletePartialFile(new File(path + ".ytdl"));
+            for (int i = 1; ; i++) {
+                boolean found = deletePartialFile(new File(path + ".part-Frag" + i));
+                found |= deletePartialFile(new File(path + ".part-Frag" + i + ".part"));
+                if (!found && i >= fragmentCount) break;
             }
         }
-        return !errors.isEmpty() ? errors.toString().trim() : "Unknown error occurred.";
     }
 
-    // Parse progress, Example line: [download] 42.1% of 5.00MiB at 1.23MiB/s ETA 00:10
-    public static Double parseProgress(String line) {
-        if (line == null || !line.startsWith("[download]")) {
-            return null;
+    // True if the file was there
+    private static boolean deletePartialFile(File file) {
+        if (!file.exists()) return false;
+        if (!deleteWhenReleased(file, FILE_RELEASE_TIMEOUT_MS)) {
+            System.err.println("Could not delete: " + file.getAbsolutePath());
         }
+        return true;
+    }
 
-        int percentIndex = line.indexOf('%');
-        if (percentIndex != -1) {
+    // Delete a file, retrying while it is still held open, e.g. by a process that is just exiting or a virus
+    // scanner (Windows doesn't delete open files). False if it still exists after the timeout.
+    public static boolean deleteWhenReleased(File file, long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        while (true) {
+            if (file.delete() || !file.exists()) return true;
+            if (System.nanoTime() >= deadline) return false;
             try {
-                int start = line.lastIndexOf(' ', percentIndex - 1) + 1;
-                String percentage = line.substring(start, percentIndex).trim();
-                return Double.parseDouble(percentage) / 100.0;
+                Thread.sleep(25);
             }
-            catch (NumberFormatException | StringIndexOutOfBoundsException ignored) {
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
         }
-        return null;
     }
 
-    // Cleanup Partial Files
-    public static void cleanupPartialFiles(String downloadsDir, String baseName) {
-        File dir = new File(downloadsDir);
-        if (!dir.exists()) return;
-
-        File[] leftovers = dir.listFiles(file -> {
-            String name = file.getName();
-            return name.startsWith(baseName) && (
-                    name.contains(".part") ||               // matches .part, .part-Frag34.part, etc.
-                            name.endsWith(".ytdl") ||               // yt-dlp metadata
-                            name.matches(".*\\.f\\d+\\..*")   // fragmented formats (like .f605.mp4)
-            );
-        });
-
-        if (leftovers != null) {
-            for (File file : leftovers) {
-                try {
-                    boolean deleted = file.delete();
-                    if (!deleted) {
-                        System.err.println("Could not delete: " + file.getAbsolutePath());
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error deleting file: " + file.getName() + " - " + e.getMessage());
-                }
-            }
+    // Stop a process and everything it started (e.g. ffmpeg under yt-dlp), which would otherwise keep
+    // running and hold files and the output pipe open
+    public static void destroyTree(Process process, boolean forcibly) {
+        // The process goes first so it can't start new children, the ones it had are known from before
+        List<ProcessHandle> children = process.descendants().toList();
+        if (forcibly) process.destroyForcibly();
+        else process.destroy();
+
+        for (ProcessHandle child : children) {
+            if (forcibly) child.destroyForcibly();
+            else child.destroy();
         }
     }
 
-    // Write daily log files
-    public static void writeLog(String content) {
-        try {
-            ensureLogDirExists();
+    // Plain bytes or with a K, M or G suffix (binary units), e.g. 2.5M or 512MB, -1 if it isn't a size
+    public static long parseBytes(String value) {
+        if (value == null || value.isBlank()) return -1;
 
-            String filename = "log-" + getCurrentDate() + ".txt";
-            File logFile = new File(LOG_DIR, filename);
+        String size = value.trim().toUpperCase(Locale.ROOT);
+        if (size.endsWith("IB")) size = size.substring(0, size.length() - 2);
+        else if (size.endsWith("B")) size = size.substring(0, size.length() - 1);
 
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFile, true))) {
-                writer.write("[Log " + getTimestamp() + "]\n");
-                writer.write(content);
-                writer.write("\n");
-            }
+        long multiplier = 1;
+        char unit = size.isEmpty() ? ' ' : size.charAt(size.length() - 1);
+        switch (unit) {
+            case 'K' -> multiplier = 1024L;
+            case 'M' -> multiplier = 1024L * 1024;
+            case 'G' -> multiplier = 1024L * 1024 * 1024;
         }
-        catch (IOException e) {
-            System.err.println("Failed to write log: " + e.getMessage());
-        }
-    }
+        if (multiplier > 1) size = size.substring(0, size.length() - 1);
 
-    // Write Result of Download to the history file
-    public static void writeHistory(int exitCode, String title, String url) {
         try {
-            String status = exitCode == 0 ? "Download Successful" : "Download Failed";
-
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(HISTORY_FILE, true))) {
-                writer.write("[" + getTimestamp() + "] " + status + ": " + title + " (" + url + ")\n");
-            }
-        }
-        catch (IOException e) {
-            System.err.println("Failed to write history: " + e.getMessage());
+            return Math.max(0, (long) (Double.parseDouble(size.trim()) * multiplier));
         }
-    }
-
-    private static void ensureLogDirExists() {
-        if (!LOG_DIR.exists()) {
-            LOG_DIR.mkdirs();
+        catch (NumberFormatException e) {
+            return -1;
         }
     }
 
-    private static String getCurrentDate() {
-        return new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+    // Record the result of a download in the history store and queue it for the history file
+    public static void writeHistory(int exitCode, String title, String url) {
+        writeHistory(exitCode, title, url, null);
     }
 
-    private static String getTimestamp() {
-        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+    // With the finished file, so a later download of the same video is only skipped while the file exists
+    public static void writeHistory(int exitCode, String title, String url, File downloaded) {
+        String status = exitCode == 0 ? "Download Successful" : "Download Failed";
+        HistoryStore.get().record(url, title, exitCode == 0, downloaded);
+        LogWriter.history(status + ": " + title + " (" + url + ")");
     }
 }
@@ -0,0 +1,207 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Drives the HTTP API against a shell script standing in for yt-dlp
+@EnabledOnOs({OS.LINUX, OS.MAC})
+class ControlServerTest {
+
+    private static final String FAKE_YT_DLP = """
+            #!/bin/sh
+            # Prints what VideoDL reads from yt-dlp and writes <id>.mp4 into the -P home: folder
+            info() {
+              id=$(basename "$1")
+              echo "{\\"id\\": \\"$id\\", \\"title\\": \\"Video $id\\", \\"webpage_url\\": \\"$1\\", \\"original_url\\": \\"$1\\", \\
+            \\"formats\\": [{\\"format_id\\": \\"18\\", \\"ext\\": \\"mp4\\", \\"vcodec\\": \\"avc1\\", \\"acodec\\": \\"mp4a\\", \\"height\\": 360}]}"
+            }
+            home=.; prev=; dump=; url=
+            for arg in "$@"; do
+              case "$prev" in
+                -P) case "$arg" in home:*) home="${arg#home:}";; esac;;
+                --batch-file) while read -r line; do info "$line"; done < "$arg"; exit 0;;
+                --load-info-json) url=$(sed 's/.*"webpage_url": "\\([^"]*\\)".*/\\1/' "$arg");;
+              esac
+              [ "$arg" = "--dump-single-json" ] && dump=1
+              prev="$arg"
+            done
+            [ -z "$url" ] && url="$prev"
+            if [ -n "$dump" ]; then info "$url"; exit 0; fi
+            id=$(basename "$url")
+            echo "[videodl] id=$id"
+            echo "[videodl] title=Video $id"
+            echo "[download] Destination: $home/$id.mp4"
+            echo "video" > "$home/$id.mp4"
+            echo "[videodl] file=$home/$id.mp4"
+            """;
+
+    @TempDir
+    static Path tools;
+    @TempDir
+    static Path output;
+
+    private static ControlServer server;
+    private static String token;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        Path ytDlp = tools.resolve("yt-dlp");
+        Files.writeString(ytDlp, FAKE_YT_DLP);
+        assertTrue(ytDlp.toFile().setExecutable(true));
+        System.setProperty("videodl.yt-dlp", ytDlp.toString());
+        System.setProperty("videodl.ffmpeg", ytDlp.toString());
+        System.setProperty("videodl.skip-downloaded", "false");
+
+        server = new ControlServer(0, 2, output.toString());
+        server.start();
+        token = Files.readString(ControlServer.TOKEN_FILE.toPath()).trim();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop();
+        System.clearProperty("videodl.yt-dlp");
+        System.clearProperty("videodl.ffmpeg");
+        System.clearProperty("videodl.skip-downloaded");
+    }
+
+    @Test
+    void tokenIsRequired() throws IOException {
+        assertEquals(401, request("GET", "/api/jobs", Map.of(), null).status);
+        assertEquals(401, request("GET", "/api/jobs", Map.of("Authorization", "Bearer wrong"), null).status);
+        assertEquals(401, request("GET", "/metrics", Map.of(), null).status);
+        assertEquals(200, request("GET", "/api/jobs", auth(), null).status);
+        assertEquals(200, request("GET", "/metrics", auth(), null).status);
+    }
+
+    @Test
+    void onlyExactPathsAreServed() throws IOException {
+        assertEquals(404, request("GET", "/api/jobsXYZ", auth(), null).status);
+        assertEquals(404, request("GET", "/api/jobs-list", auth(), null).status);
+        assertEquals(404, request("GET", "/metricsXYZ", auth(), null).status);
+        assertEquals(200, request("GET", "/api/jobs/", auth(), null).status);
+    }
+
+    @Test
+    void foreignHostIsRejected() throws IOException {
+        Map<String, String> headers = auth();
+        headers.put("Host", "attacker.example:" + server.getPort());
+        assertEquals(403, request("GET", "/api/jobs", headers, null).status);
+
+        headers.put("Host", "localhost:" + server.getPort());
+        assertEquals(200, request("GET", "/api/jobs", headers, null).status);
+    }
+
+    @Test
+    void foreignOriginIsRejected() throws IOException {
+        Map<String, String> headers = auth();
+        headers.put("Origin", "https://attacker.example");
+        assertEquals(403, request("GET", "/api/jobs", headers, null).status);
+        headers.put("Origin", "null");
+        assertEquals(403, request("GET", "/api/jobs", headers, null).status);
+
+        headers.put("Origin", "http://localhost:" + server.getPort());
+        assertEquals(200, request("GET", "/api/jobs", headers, null).status);
+    }
+
+    @Test
+    void submitNeedsJson() throws IOException {
+        int jobs = server.getQueue().getJobs().size();
+        Map<String, String> headers = auth();
+        headers.put("Content-Type", "text/plain");
+
+        Response response = request("POST", "/api/jobs", headers, "{\"url\": \"https://example.com/v/plain\"}");
+
+        assertEquals(415, response.status);
+        assertEquals(jobs, server.getQueue().getJobs().size());
+    }
+
+    @Test
+    void outputDirMustBeInsideTheDefault(@TempDir Path elsewhere) throws IOException {
+        assertEquals(400, submit("{\"url\": \"https://example.com/v/out1\", \"outputDir\": " + Json.quote(elsewhere.toString()) + "}").status);
+        assertEquals(400, submit("{\"url\": \"https://example.com/v/out2\", \"outputDir\": \"..\"}").status);
+    }
+
+    @Test
+    void downloadsIntoAFolderOfTheDefault() throws Exception {
+        Files.createDirectories(output.resolve("sub"));
+
+        Response response = submit("{\"urls\": [\"https://example.com/v/abc\"], \"outputDir\": \"sub\"}");
+        assertEquals(202, response.status, response.body);
+
+        Map<String, Object> job = awaitDone(firstJobId(response.body));
+        assertEquals("COMPLETED", job.get("state"), String.valueOf(job.get("message")));
+        assertTrue(Files.isRegularFile(output.resolve("sub").resolve("Video abc.mp4")));
+    }
+
+    private static Map<String, String> auth() {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Authorization", "Bearer " + token);
+        return headers;
+    }
+
+    private static Response submit(String json) throws IOException {
+        Map<String, String> headers = auth();
+        headers.put("Content-Type", "application/json");
+        return request("POST", "/api/jobs", headers, json);
+    }
+
+    private static long firstJobId(String json) {
+        List<?> jobs = (List<?>) Json.parseObject(json).get("jobs");
+        return ((Number) ((Map<?, ?>) jobs.get(0)).get("id")).longValue();
+    }
+
+    private static Map<String, Object> awaitDone(long id) throws Exception {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (true) {
+            Map<String, Object> job = Json.parseObject(request("GET", "/api/jobs/" + id, auth(), null).body);
+            String state = (String) job.get("state");
+            if (!state.equals("QUEUED") && !state.equals("RUNNING")) return job;
+            if (System.currentTimeMillis() > deadline) fail("Job still " + state + ": " + job.get("message"));
+            Thread.sleep(100);
+        }
+    }
+
+    private record Response(int status, String body) {}
+
+    // Plain HTTP/1.1 over a socket, so Host and Origin can be set freely
+    private static Response request(String method, String path, Map<String, String> headers, String body) throws IOException {
+        byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        StringBuilder request = new StringBuilder(method + " " + path + " HTTP/1.1\r\n");
+        if (!headers.containsKey("Host")) request.append("Host: 127.0.0.1:").append(server.getPort()).append("\r\n");
+        headers.forEach((name, value) -> request.append(name).append(": ").append(value).append("\r\n"));
+        request.append("Content-Length: ").append(content.length).append("\r\n");
+        request.append("Connection: close\r\n\r\n");
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(content);
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            String response = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            int status = Integer.parseInt(response.split(" ", 3)[1]);
+            int start = response.indexOf("\r\n\r\n");
+            return new Response(status, start < 0 ? "" : response.substring(start + 4));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadServiceTest {
+
+    @TempDir
+    Path dir;
+
+    // Not the shared store, that would write into the real history
+    private HistoryStore history;
+
+    @BeforeEach
+    void openHistory() {
+        history = new HistoryStore(dir.resolve("history.db").toFile(), dir.resolve("history.txt").toFile());
+        history.load();
+    }
+
+    @Test
+    void renamesToTheTitle() throws IOException {
+        File downloaded = file("abc.mp4", "new");
+
+        File renamed = DownloadService.renameToTitle(downloaded, "Title", "abc", "https://example.com/v/abc", history);
+
+        assertEquals(dir.resolve("Title.mp4").toFile(), renamed);
+        assertEquals("new", Files.readString(renamed.toPath()));
+        assertFalse(downloaded.exists());
+    }
+
+    @Test
+    void replacesAnEarlierDownloadOfTheSameVideo() throws IOException {
+        File earlier = file("Same.mp4", "old");
+        history.record("https://example.com/v/same", "Same", true, earlier);
+
+        File renamed = DownloadService.renameToTitle(file("same.mp4", "new"), "Same", "same", "https://example.com/v/same", history);
+
+        assertEquals(earlier, renamed);
+        assertEquals("new", Files.readString(renamed.toPath()));
+    }
+
+    @Test
+    void appendsTheIdForAnotherVideosFile() throws IOException {
+        File other = file("Shared.mp4", "other");
+        history.record("https://example.com/v/other", "Shared", true, other);
+
+        File renamed = DownloadService.renameToTitle(file("mine.mp4", "new"), "Shared", "mine", "https://example.com/v/mine", history);
+
+        assertEquals(dir.resolve("Shared [mine].mp4").toFile(), renamed);
+        assertEquals("other", Files.readString(other.toPath()));
+    }
+
+    @Test
+    void appendsTheIdForAFileTheHistoryDoesNotKnow() throws IOException {
+        File unknown = file("Mine.mp4", "user's own");
+
+        File renamed = DownloadService.renameToTitle(file("xyz.mp4", "new"), "Mine", "xyz", "https://example.com/v/xyz", history);
+
+        assertEquals(dir.resolve("Mine [xyz].mp4").toFile(), renamed);
+        assertEquals("user's own", Files.readString(unknown.toPath()));
+    }
+
+    @Test
+    void neverReplacesWithoutAnId() throws IOException {
+        File existing = file("Unknown.mp4", "first");
+        file("Unknown (2).mp4", "second");
+
+        File renamed = DownloadService.renameToTitle(file("NA.mp4", "third"), "Unknown", null, "https://example.com/v/na", history);
+
+        assertEquals(dir.resolve("Unknown (3).mp4").toFile(), renamed);
+        assertEquals("first", Files.readString(existing.toPath()));
+    }
+
+    private File file(String name, String content) throws IOException {
+        Path path = dir.resolve(name);
+        Files.writeString(path, content);
+        return path.toFile();
+    }
+}
@@ -0,0 +1,45 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FailureReasonTest {
+
+    @Test
+    void classifiesYtDlpErrors() {
+        assertEquals(FailureReason.RATE_LIMITED,
+                FailureReason.classify("ERROR: unable to download video data: HTTP Error 429: Too Many Requests"));
+        assertEquals(FailureReason.FORBIDDEN, FailureReason.classify("ERROR: unable to download video data: HTTP Error 403: Forbidden"));
+        assertEquals(FailureReason.NOT_FOUND, FailureReason.classify("ERROR: Unable to download webpage: HTTP Error 404: Not Found"));
+        assertEquals(FailureReason.UNSUPPORTED, FailureReason.classify("ERROR: Unsupported URL: https://example.com"));
+        assertEquals(FailureReason.UNAVAILABLE, FailureReason.classify("ERROR: [youtube] abc: Private video. Sign in if you've been granted access"));
+        assertEquals(FailureReason.SERVER, FailureReason.classify("ERROR: [generic] Unable to download webpage: HTTP Error 503: Service Unavailable"));
+        assertEquals(FailureReason.NETWORK,
+                FailureReason.classify("ERROR: unable to download video data: <urlopen error [Errno 104] Connection reset by peer>"));
+        assertEquals(FailureReason.DISK, FailureReason.classify("ERROR: unable to write data: [Errno 28] No space left on device"));
+        assertEquals(FailureReason.MERGE, FailureReason.classify("Merging failed: Invalid data found when processing input"));
+    }
+
+    @Test
+    void unknownForEmptyOrUnmatched() {
+        assertEquals(FailureReason.UNKNOWN, FailureReason.classify(null));
+        assertEquals(FailureReason.UNKNOWN, FailureReason.classify(""));
+        assertEquals(FailureReason.UNKNOWN, FailureReason.classify("Unknown error occurred."));
+    }
+
+    @Test
+    void caseDoesNotMatter() {
+        assertEquals(FailureReason.RATE_LIMITED, FailureReason.classify("TOO MANY REQUESTS"));
+    }
+
+    @Test
+    void kinds() {
+        assertEquals(FailureReason.Kind.RATE_LIMITED, FailureReason.RATE_LIMITED.kind());
+        assertEquals(FailureReason.Kind.TRANSIENT, FailureReason.SERVER.kind());
+        assertEquals(FailureReason.Kind.TRANSIENT, FailureReason.NETWORK.kind());
+        assertEquals(FailureReason.Kind.PERMANENT, FailureReason.NOT_FOUND.kind());
+        assertEquals(FailureReason.Kind.PERMANENT, FailureReason.UNKNOWN.kind());
+        assertEquals("rate_limited", FailureReason.RATE_LIMITED.label());
+    }
+}
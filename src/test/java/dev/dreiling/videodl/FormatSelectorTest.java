@@ -0,0 +1,108 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FormatSelectorTest {
+
+    private static MetadataCache.Format video(String id, String ext, String vcodec, int height, double fps, double tbr) {
+        return new MetadataCache.Format(id, ext, vcodec, "none", height, fps, tbr, -1);
+    }
+
+    private static MetadataCache.Format audio(String id, String ext, String acodec, double tbr) {
+        return new MetadataCache.Format(id, ext, "none", acodec, -1, -1, tbr, -1);
+    }
+
+    // Roughly what YouTube offers
+    private static final List<MetadataCache.Format> FORMATS = List.of(
+            new MetadataCache.Format("18", "mp4", "avc1", "mp4a", 360, 30, 500, -1),
+            video("134", "mp4", "avc1", 360, 30, 300),
+            video("136", "mp4", "avc1", 720, 30, 1500),
+            video("247", "webm", "vp9", 720, 30, 1200),
+            video("298", "mp4", "avc1", 720, 60, 2500),
+            video("137", "mp4", "avc1", 1080, 30, 4000),
+            video("248", "webm", "vp9", 1080, 30, 3000),
+            video("303", "webm", "vp9", 1080, 60, 5000),
+            audio("140", "m4a", "mp4a", 129.5),
+            audio("251", "webm", "opus", 140));
+
+    @Test
+    void parseHeight() {
+        assertEquals(1080, FormatSelector.parseHeight("1080p"));
+        assertEquals(1440, FormatSelector.parseHeight("1440p60"));
+        assertEquals(-1, FormatSelector.parseHeight("Audio only"));
+        assertEquals(-1, FormatSelector.parseHeight("p60"));
+        assertEquals(-1, FormatSelector.parseHeight("best"));
+        assertEquals(-1, FormatSelector.parseHeight("HDp"));
+    }
+
+    @Test
+    void earlierSelectionIsKeptWhileItsFormatsAreOffered() {
+        assertTrue(FormatSelector.isOffered(FORMATS, new FormatSelector.Selection("137+140", "mp4")));
+        assertFalse(FormatSelector.isOffered(FORMATS, new FormatSelector.Selection("999+140", "mp4")));
+        assertTrue(FormatSelector.isOffered(FORMATS, new FormatSelector.Selection(Utils.getFormatCode("1080p"), "mp4")));
+    }
+
+    @Test
+    void pairThatFitsMp4() {
+        assertEquals(new FormatSelector.Selection("137+140", "mp4"), FormatSelector.select(FORMATS, "1080p"));
+    }
+
+    @Test
+    void sixtyFpsOnlyForP60Labels() {
+        assertEquals(new FormatSelector.Selection("298+140", "mp4"), FormatSelector.select(FORMATS, "720p60"));
+        assertEquals(new FormatSelector.Selection("136+140", "mp4"), FormatSelector.select(FORMATS, "720p"));
+        // Only webm at 1080p60
+        assertEquals(new FormatSelector.Selection("303+251", "webm"), FormatSelector.select(FORMATS, "1080p60"));
+    }
+
+    @Test
+    void progressiveFileNeedsNoMerge() {
+        assertEquals(new FormatSelector.Selection("18", null), FormatSelector.select(FORMATS, "360p"));
+    }
+
+    @Test
+    void highestHeightBelowTheLabelOrTheLowest() {
+        assertEquals("137+140", FormatSelector.select(FORMATS, "1440p").formatSpec());
+        assertEquals("18", FormatSelector.select(FORMATS, "240p").formatSpec());
+    }
+
+    @Test
+    void audioOnlyPrefersMp4Codecs() {
+        assertEquals(new FormatSelector.Selection("140", null), FormatSelector.select(FORMATS, "Audio only"));
+        assertEquals(new FormatSelector.Selection("251", null),
+                FormatSelector.select(List.of(audio("251", "webm", "opus", 140)), "Audio only"));
+    }
+
+    @Test
+    void otherCodecsMergeIntoMkv() {
+        List<MetadataCache.Format> formats = List.of(video("v", "mp4", "avc1", 720, 30, 1000), audio("a", "webm", "opus", 128));
+
+        assertEquals(new FormatSelector.Selection("v+a", "mkv"), FormatSelector.select(formats, "720p"));
+    }
+
+    @Test
+    void nothingUsable() {
+        assertNull(FormatSelector.select(List.of(), "720p"));
+        assertNull(FormatSelector.select(null, "720p"));
+        assertNull(FormatSelector.select(FORMATS, "best"));
+        assertNull(FormatSelector.select(List.of(audio("140", "m4a", "mp4a", 129.5)), "720p"));
+    }
+
+    @Test
+    void estimateSize() {
+        List<MetadataCache.Format> formats = List.of(
+                new MetadataCache.Format("137", "mp4", "avc1", "none", 1080, 30, 4000, 50_000_000),
+                audio("140", "m4a", "mp4a", 128));
+        MetadataCache.Info info = new MetadataCache.Info("id", "title", 100, List.of("1080p"), true, formats, new File("x"), 0);
+
+        // Size of the video, bitrate (kbit/s) times duration for the audio
+        assertEquals(50_000_000 + 1_600_000, FormatSelector.estimateSize(info, new FormatSelector.Selection("137+140", "mp4")));
+        assertEquals(-1, FormatSelector.estimateSize(info, new FormatSelector.Selection("bestvideo+bestaudio", "mp4")));
+        assertEquals(-1, FormatSelector.estimateSize(null, new FormatSelector.Selection("137", null)));
+    }
+}
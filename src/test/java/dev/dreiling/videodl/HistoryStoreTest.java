@@ -0,0 +1,199 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void youtubeUrlsMapToTheVideoId() {
+        String key = "youtube:dQw4w9WgXcQ";
+
+        assertEquals(key, HistoryStore.normalizeUrl("https://www.youtube.com/watch?v=dQw4w9WgXcQ"));
+        assertEquals(key, HistoryStore.normalizeUrl("https://youtu.be/dQw4w9WgXcQ"));
+        assertEquals(key, HistoryStore.normalizeUrl("https://youtu.be/dQw4w9WgXcQ?si=abc&t=42"));
+        assertEquals(key, HistoryStore.normalizeUrl("https://m.youtube.com/watch?feature=share&v=dQw4w9WgXcQ"));
+        assertEquals(key, HistoryStore.normalizeUrl("https://music.youtube.com/watch?v=dQw4w9WgXcQ&list=RD"));
+        assertEquals(key, HistoryStore.normalizeUrl("https://www.youtube.com/shorts/dQw4w9WgXcQ"));
+        assertEquals(key, HistoryStore.normalizeUrl("https://www.youtube.com/embed/dQw4w9WgXcQ"));
+        assertEquals(key, HistoryStore.normalizeUrl("  https://YOUTUBE.com/live/dQw4w9WgXcQ  "));
+    }
+
+    @Test
+    void queryParameterOrderDoesNotMatter() {
+        assertEquals(HistoryStore.normalizeUrl("https://example.com/video?b=2&a=1"),
+                HistoryStore.normalizeUrl("https://example.com/video?a=1&b=2"));
+    }
+
+    @Test
+    void trackingParametersAreIgnored() {
+        assertEquals("example.com/video?id=5",
+                HistoryStore.normalizeUrl("https://www.example.com/video/?utm_source=x&id=5&si=abc&feature=share"));
+    }
+
+    @Test
+    void otherSitesKeepHostPathAndQuery() {
+        assertEquals("vimeo.com/12345", HistoryStore.normalizeUrl("https://vimeo.com/12345"));
+        assertEquals("vimeo.com/12345", HistoryStore.normalizeUrl("http://www.vimeo.com/12345/"));
+        assertNotEquals(HistoryStore.normalizeUrl("https://example.com/a"), HistoryStore.normalizeUrl("https://example.com/b"));
+        // A channel page isn't a video
+        assertEquals("youtube.com/@channel", HistoryStore.normalizeUrl("https://www.youtube.com/@channel"));
+    }
+
+    @Test
+    void unparsableUrlsAreKeptAsTheyAre() {
+        assertEquals("not a url", HistoryStore.normalizeUrl(" not a url "));
+    }
+
+    @Test
+    void filesMapToTheVideoLastSavedAsThem() {
+        HistoryStore store = open();
+        File shared = dir.resolve("Shared.mp4").toFile();
+        File moved = dir.resolve("Moved.mp4").toFile();
+
+        store.record("https://example.com/v/a", "A", true, shared);
+        assertEquals("example.com/v/a", store.findKeyByFile(shared));
+
+        store.record("https://example.com/v/b", "B", true, shared);
+        store.record("https://example.com/v/a", "A", true, moved);
+        store.record("https://example.com/v/b", "B", false, null);
+        assertEquals("example.com/v/b", store.findKeyByFile(shared));
+        assertEquals("example.com/v/a", store.findKeyByFile(moved));
+        assertNull(store.findKeyByFile(dir.resolve("Other.mp4").toFile()));
+    }
+
+    @Test
+    void recordsAreReadBackAfterARestart() throws IOException {
+        File video = Files.writeString(dir.resolve("Video.mp4"), "video").toFile();
+        HistoryStore store = open();
+        store.record("https://www.youtube.com/watch?v=abc", "Video", true, video);
+        store.record("https://example.com/v/broken", "Broken", false, null);
+
+        HistoryStore reloaded = open();
+
+        assertEquals(2, reloaded.size());
+        HistoryStore.Entry entry = reloaded.find("https://youtu.be/abc");
+        assertTrue(entry.successful());
+        assertEquals("Video", entry.title());
+        assertEquals(video.getAbsolutePath(), entry.file());
+        assertFalse(entry.isFileMissing());
+        assertFalse(reloaded.isDownloaded("https://example.com/v/broken"));
+        assertEquals("youtube:abc", reloaded.findKeyByFile(video));
+
+        Files.delete(video.toPath());
+        assertTrue(reloaded.find("https://youtu.be/abc").isFileMissing());
+    }
+
+    @Test
+    void aFailureNeverHidesASuccess() {
+        HistoryStore store = open();
+        store.record("https://example.com/v/1", "First", true, null);
+        store.record("https://example.com/v/1", "Again", false, null);
+
+        assertTrue(store.isDownloaded("https://example.com/v/1"));
+        assertEquals("First", open().find("https://example.com/v/1").title());
+    }
+
+    @Test
+    void aTruncatedLastRecordIsDropped() throws IOException {
+        HistoryStore store = open();
+        store.record("https://example.com/v/1", "One", true, null);
+        long complete = storeFile().length();
+        store.record("https://example.com/v/2", "Two", true, null);
+
+        // Cut off in the middle of the second record, as by a crash while writing it
+        try (RandomAccessFile raf = new RandomAccessFile(storeFile(), "rw")) {
+            raf.setLength(storeFile().length() - 5);
+        }
+
+        HistoryStore repaired = open();
+        assertEquals(1, repaired.size());
+        assertNull(repaired.find("https://example.com/v/2"));
+        assertEquals(complete, storeFile().length());
+
+        // New records are appended after the last complete one
+        repaired.record("https://example.com/v/3", "Three", true, null);
+        HistoryStore reloaded = open();
+        assertEquals(2, reloaded.size());
+        assertEquals("Three", reloaded.find("https://example.com/v/3").title());
+    }
+
+    @Test
+    void version1IsUpgraded() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(storeFile()))) {
+            out.writeInt(0x56444C48);
+            out.writeInt(1);
+            for (String id : List.of("1", "2")) {
+                out.writeUTF("example.com/v/" + id);
+                out.writeUTF("https://example.com/v/" + id);
+                out.writeUTF("Video " + id);
+                out.writeLong(1000);
+                out.writeBoolean(true);
+            }
+        }
+
+        HistoryStore upgraded = open();
+        assertEquals(2, upgraded.size());
+        HistoryStore.Entry entry = upgraded.find("https://example.com/v/1");
+        assertEquals("", entry.file());
+        assertFalse(entry.isFileMissing());
+
+        File video = Files.writeString(dir.resolve("Video 3.mp4"), "video").toFile();
+        upgraded.record("https://example.com/v/3", "Video 3", true, video);
+
+        HistoryStore reloaded = open();
+        assertEquals(3, reloaded.size());
+        assertEquals("Video 2", reloaded.find("https://example.com/v/2").title());
+        assertEquals(video.getAbsolutePath(), reloaded.find("https://example.com/v/3").file());
+    }
+
+    @Test
+    void historyTxtIsImportedOnce() throws IOException {
+        Files.writeString(dir.resolve("history.txt"), """
+                [2024-01-02 03:04:05] Download Successful: First video (https://www.youtube.com/watch?v=one)
+                [2024-01-02 03:05:00] Download Failed: Second video (https://example.com/v/2)
+                [2024-01-02 03:06:00] Download Failed: First video (https://youtu.be/one)
+                not a history line
+                """);
+
+        HistoryStore imported = open();
+        assertEquals(2, imported.size());
+        HistoryStore.Entry first = imported.find("https://youtu.be/one");
+        assertTrue(first.successful());
+        assertEquals("First video", first.title());
+        assertTrue(first.time() > 0);
+        assertFalse(imported.isDownloaded("https://example.com/v/2"));
+        assertTrue(storeFile().isFile());
+
+        // From now on the store is read, a changed history.txt isn't imported again
+        Files.writeString(dir.resolve("history.txt"), "[2024-01-03 00:00:00] Download Successful: Third (https://example.com/v/3)\n");
+        HistoryStore reloaded = open();
+        assertEquals(2, reloaded.size());
+        assertNull(reloaded.find("https://example.com/v/3"));
+    }
+
+    private File storeFile() {
+        return dir.resolve("history.db").toFile();
+    }
+
+    // A store of its own in the test's folder, loaded like the shared one
+    private HistoryStore open() {
+        HistoryStore store = new HistoryStore(storeFile(), dir.resolve("history.txt").toFile());
+        store.load();
+        return store;
+    }
+}
@@ -0,0 +1,72 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonTest {
+
+    @Test
+    void parsesNestedValues() {
+        Map<String, Object> json = Json.parseObject(
+                " { \"id\": \"abc\", \"formats\": [ {\"height\": 1080}, {} ], \"live\": false, \"chapters\": null } ");
+
+        assertEquals("abc", json.get("id"));
+        assertEquals(List.of(Map.of("height", 1080L), Map.of()), json.get("formats"));
+        assertEquals(Boolean.FALSE, json.get("live"));
+        assertTrue(json.containsKey("chapters"));
+        assertNull(json.get("chapters"));
+    }
+
+    @Test
+    void keepsKeyOrder() {
+        Map<String, Object> json = Json.parseObject("{\"b\": 1, \"a\": 2, \"c\": 3}");
+
+        assertEquals(List.of("b", "a", "c"), List.copyOf(json.keySet()));
+    }
+
+    @Test
+    void numbers() {
+        assertEquals(42L, Json.parse("42"));
+        assertEquals(-7L, Json.parse("-7"));
+        assertEquals(129.5, Json.parse("129.5"));
+        assertEquals(1.5e-5, Json.parse("1.5e-05"));
+        assertEquals(2e3, Json.parse("2E+3"));
+        // Too large for a long
+        assertEquals(1e20, (Double) Json.parse("100000000000000000000"), 1e5);
+    }
+
+    @Test
+    void stringEscapes() {
+        assertEquals("a\"b\\c/d", Json.parse("\"a\\\"b\\\\c\\/d\""));
+        assertEquals("line\nnext\ttab\r\b\f", Json.parse("\"line\\nnext\\ttab\\r\\b\\f\""));
+        assertEquals("Ü ♥", Json.parse("\"\\u00dc \\u2665\""));
+        assertEquals("😀", Json.parse("\"\\ud83d\\ude00\""));
+        assertEquals("", Json.parse("\"\""));
+    }
+
+    @Test
+    void quoteRoundTrips() {
+        String text = "Title \"quoted\" \\ back\nslash\u0001";
+
+        assertEquals("\"Title \\\"quoted\\\" \\\\ back\\nslash\\u0001\"", Json.quote(text));
+        assertEquals(text, Json.parse(Json.quote(text)));
+        assertEquals("null", Json.quote(null));
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+        assertThrows(IllegalArgumentException.class, () -> Json.parse(""));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("{\"a\": 1"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("{\"a\" 1}"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("[1, 2"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("\"open"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("\"\\u12\""));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("tru"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("{} trailing"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parseObject("[1]"));
+    }
+}
@@ -0,0 +1,26 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlaylistExpanderTest {
+
+    @Test
+    void playlistsAndChannelsAreExpanded() {
+        assertTrue(PlaylistExpander.isPlaylistUrl("https://www.youtube.com/playlist?list=PL123"));
+        assertTrue(PlaylistExpander.isPlaylistUrl("https://www.youtube.com/channel/UC123"));
+        assertTrue(PlaylistExpander.isPlaylistUrl("https://www.youtube.com/@name"));
+        assertTrue(PlaylistExpander.isPlaylistUrl("https://www.youtube.com/@name/videos"));
+        assertTrue(PlaylistExpander.isPlaylistUrl("https://www.youtube.com/@name/shorts?view=0"));
+        assertTrue(PlaylistExpander.isPlaylistUrl("https://www.tiktok.com/@user"));
+    }
+
+    @Test
+    void singleVideosBelowAHandleAreNot() {
+        assertFalse(PlaylistExpander.isPlaylistUrl("https://www.tiktok.com/@user/video/123"));
+        assertFalse(PlaylistExpander.isPlaylistUrl("https://www.youtube.com/@name/live"));
+        assertFalse(PlaylistExpander.isPlaylistUrl("https://www.youtube.com/watch?v=abc&list=PL123"));
+        assertFalse(PlaylistExpander.isPlaylistUrl("https://example.com/v/1"));
+    }
+}
@@ -0,0 +1,80 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgressAggregatorTest {
+
+    private final List<String> published = new ArrayList<>();
+    private final List<ProgressEvent> events = new ArrayList<>();
+    private final ProgressAggregator aggregator = new ProgressAggregator(new DownloadListener() {
+        @Override
+        public void onProgress(DownloadJob job, ProgressEvent event) {
+            events.add(event);
+            published.add("progress " + event.getDownloadedBytes());
+        }
+
+        @Override
+        public void onStatus(DownloadJob job, String status) {
+            published.add("status " + status);
+        }
+
+        @Override
+        public void onFinished(DownloadJob job) {
+            published.add("finished");
+        }
+    });
+
+    @Test
+    void publishesACopyOfTheLatestState() {
+        DownloadJob job = new DownloadJob("https://example.com/v/1", "360p", ".");
+        ProgressEvent event = new ProgressEvent();
+        for (long bytes = 1; bytes <= 3; bytes++) {
+            event.setDownloadedBytes(bytes * 1000);
+            aggregator.onProgress(job, event);
+        }
+
+        aggregator.drain();
+        event.setDownloadedBytes(9000);
+        aggregator.drain();
+
+        assertEquals(List.of("progress 3000"), published);
+        assertNotSame(event, events.get(0));
+        assertEquals(3000, events.get(0).getDownloadedBytes());
+    }
+
+    @Test
+    void aStatusLineKeepsTheLastProgress() {
+        DownloadJob job = new DownloadJob("https://example.com/v/1", "360p", ".");
+        ProgressEvent event = new ProgressEvent();
+        event.setDownloadedBytes(1000);
+        aggregator.onProgress(job, event);
+        aggregator.onStatus(job, "Merging");
+
+        aggregator.drain();
+
+        assertEquals(List.of("progress 1000", "status Merging"), published);
+    }
+
+    @Test
+    void nothingIsPublishedAfterTheFinalState() {
+        DownloadJob job = new DownloadJob("https://example.com/v/1", "360p", ".");
+        ProgressEvent event = new ProgressEvent();
+        event.setDownloadedBytes(1000);
+        aggregator.onProgress(job, event);
+
+        job.setState(DownloadJob.State.COMPLETED);
+        aggregator.onFinished(job);
+        aggregator.drain();
+
+        // A line read after the job finished
+        aggregator.onStatus(job, "late");
+        aggregator.drain();
+
+        assertEquals(List.of("finished"), published);
+    }
+}
@@ -0,0 +1,157 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgressParserTest {
+
+    private final ProgressParser parser = new ProgressParser();
+    private final ProgressEvent event = new ProgressEvent();
+
+    @Test
+    void parsesAllFields() {
+        assertTrue(parser.parse("[videodl-progress] downloading 1000 4000 NA 1000.5 3 2 10", event));
+
+        assertEquals(ProgressEvent.Phase.DOWNLOAD, event.getPhase());
+        assertEquals(1000, event.getDownloadedBytes());
+        assertEquals(4000, event.getTotalBytes());
+        assertEquals(1000.5, event.getSpeed(), 1e-9);
+        assertEquals(3, event.getEta());
+        assertEquals(2, event.getFragmentIndex());
+        assertEquals(10, event.getFragmentCount());
+        assertEquals(0.25, event.getProgress(), 1e-9);
+        assertFalse(event.isFinished());
+    }
+
+    @Test
+    void missingValuesAreNA() {
+        assertTrue(parser.parse("[videodl-progress] downloading NA NA NA NA NA NA NA", event));
+
+        assertEquals(-1, event.getDownloadedBytes());
+        assertEquals(-1, event.getTotalBytes());
+        assertEquals(-1, event.getSpeed());
+        assertEquals(-1, event.getEta());
+        assertEquals(-1, event.getFragmentIndex());
+        assertEquals(-1, event.getFragmentCount());
+        assertEquals(-1, event.getProgress());
+    }
+
+    @Test
+    void estimateStandsInForMissingTotal() {
+        parser.parse("[videodl-progress] downloading 500 NA 2000.7 NA NA NA NA", event);
+
+        assertEquals(2000, event.getTotalBytes());
+        assertEquals(0.25, event.getProgress(), 0.001);
+    }
+
+    @Test
+    void fragmentsGiveProgressWithoutSizes() {
+        parser.parse("[videodl-progress] downloading NA NA NA NA NA 30 120", event);
+
+        assertEquals(0.25, event.getProgress(), 1e-9);
+    }
+
+    @Test
+    void finishedLine() {
+        parser.parse("[videodl-progress] finished 3000 3000 NA NA NA NA NA", event);
+
+        assertTrue(event.isFinished());
+        assertEquals(1.0, event.getProgress());
+    }
+
+    @Test
+    void partialLineLeavesTheRestUnknown() {
+        assertTrue(parser.parse("[videodl-progress] downloading 1000", event));
+
+        assertEquals(1000, event.getDownloadedBytes());
+        assertEquals(-1, event.getTotalBytes());
+        assertEquals(-1, event.getEta());
+        assertEquals(-1, event.getFragmentCount());
+
+        assertTrue(parser.parse("[videodl-progress]", event));
+        assertEquals(-1, event.getDownloadedBytes());
+    }
+
+    @Test
+    void malformedNumbersAreUnknown() {
+        parser.parse("[videodl-progress] downloading 12x4 -5 NA fast 1e5 NA NA", event);
+
+        assertEquals(-1, event.getDownloadedBytes());
+        assertEquals(-1, event.getTotalBytes());
+        assertEquals(-1, event.getSpeed());
+        assertEquals(-1, event.getEta());
+    }
+
+    @Test
+    void speedWithExponent() {
+        parser.parse("[videodl-progress] downloading 0 100 NA 1.5e-05 NA NA NA", event);
+        assertEquals(1.5e-05, event.getSpeed(), 1e-12);
+
+        parser.parse("[videodl-progress] downloading 0 100 NA 2.5e+03 NA NA NA", event);
+        assertEquals(2500, event.getSpeed(), 1e-9);
+
+        parser.parse("[videodl-progress] downloading 0 100 NA 2.5e NA NA NA", event);
+        assertEquals(-1, event.getSpeed());
+    }
+
+    @Test
+    void floatsAreTruncated() {
+        parser.parse("[videodl-progress] downloading 1234.9 NA NA NA 7.6 NA NA", event);
+
+        assertEquals(1234, event.getDownloadedBytes());
+        assertEquals(7, event.getEta());
+    }
+
+    @Test
+    void leadingWhitespaceAndExtraSpaces() {
+        assertTrue(parser.parse("  \t[videodl-progress]   downloading   10   20 NA NA NA NA NA", event));
+
+        assertEquals(10, event.getDownloadedBytes());
+        assertEquals(20, event.getTotalBytes());
+    }
+
+    @Test
+    void tagsMovePhase() {
+        assertFalse(parser.parse("[Merger] Merging formats into \"a.mp4\"", event));
+        assertEquals(ProgressEvent.Phase.MERGE, event.getPhase());
+
+        assertFalse(parser.parse("[ExtractAudio] Destination: a.m4a", event));
+        assertEquals(ProgressEvent.Phase.POST_PROCESS, event.getPhase());
+
+        assertFalse(parser.parse("[hlsnative] Downloading m3u8 manifest", event));
+        assertEquals(ProgressEvent.Phase.DOWNLOAD, event.getPhase());
+    }
+
+    @Test
+    void extractionStartsANewFile() {
+        parser.parse("[videodl-progress] downloading 1000 4000 NA NA NA NA NA", event);
+        parser.parse("[youtube] abc: Downloading webpage", event);
+
+        assertEquals(ProgressEvent.Phase.EXTRACT, event.getPhase());
+        assertEquals(-1, event.getDownloadedBytes());
+        assertEquals(-1, event.getTotalBytes());
+    }
+
+    @Test
+    void ownMarkersAndBrokenTagsKeepThePhase() {
+        parser.parse("[videodl-progress] downloading 1000 4000 NA NA NA NA NA", event);
+
+        assertFalse(parser.parse("[videodl] id=abc", event));
+        assertFalse(parser.parse("[download unterminated", event));
+        assertFalse(parser.parse("plain text", event));
+        assertFalse(parser.parse("", event));
+
+        assertEquals(ProgressEvent.Phase.DOWNLOAD, event.getPhase());
+        assertEquals(1000, event.getDownloadedBytes());
+    }
+
+    @Test
+    void parsesARangeOfABuffer() {
+        char[] buffer = "xx[videodl-progress] downloading 5 10 NA NA NA NA NAyy".toCharArray();
+
+        assertTrue(parser.parse(buffer, 2, buffer.length - 2, event));
+        assertEquals(5, event.getDownloadedBytes());
+        assertEquals(-1, event.getFragmentCount());
+    }
+}
@@ -0,0 +1,92 @@
+package dev.dreiling.videodl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UtilsTest {
+
+    @Test
+    void onlyHttpUrlsWithAHostAreValid() {
+        assertTrue(Utils.isValidUrl("https://www.youtube.com/watch?v=abc"));
+        assertTrue(Utils.isValidUrl("HTTP://example.com/v/1"));
+        assertFalse(Utils.isValidUrl("ftp://example.com/v/1"));
+        assertFalse(Utils.isValidUrl("https:///path"));
+        assertFalse(Utils.isValidUrl("https://exa mple.com"));
+        assertFalse(Utils.isValidUrl("example.com/v/1"));
+        assertFalse(Utils.isValidUrl(""));
+    }
+
+    @Test
+    void sanitizeTitleRemovesHashtagsAndInvalidCharacters() {
+        assertEquals("Video test", Utils.sanitizeTitle("Video #tag test?"));
+        assertEquals("ACDC - Back in Black", Utils.sanitizeTitle("AC/DC - Back in Black #shorts #music"));
+        assertEquals("ab", Utils.sanitizeTitle("a\\/:*?\"<>|b"));
+        assertEquals("C# is fine", Utils.sanitizeTitle("C# is fine"));
+    }
+
+    @Test
+    void sanitizeTitleCollapsesWhitespace() {
+        assertEquals("a b c", Utils.sanitizeTitle("  a \t\n b\r\n\u000Bc  "));
+    }
+
+    @Test
+    void sanitizeTitleRemovesControlCharacters() {
+        assertEquals("ab", Utils.sanitizeTitle("a\u0000\u0001\u001Fb"));
+    }
+
+    @Test
+    void sanitizeTitleRemovesTrailingFormatId() {
+        assertEquals("Video", Utils.sanitizeTitle("Video.f606"));
+        assertEquals("Video", Utils.sanitizeTitle("Video .f606  "));
+        assertEquals("Video", Utils.sanitizeTitle("Video.f606?"));
+        assertEquals("Video.f606 part 2", Utils.sanitizeTitle("Video.f606 part 2"));
+        assertEquals("Video.f", Utils.sanitizeTitle("Video.f"));
+        assertEquals("Video.fx1", Utils.sanitizeTitle("Video.fx1"));
+    }
+
+    @Test
+    void sanitizeTitleNeverEmpty() {
+        assertEquals("Unknown", Utils.sanitizeTitle(null));
+        assertEquals("Unknown", Utils.sanitizeTitle(""));
+        assertEquals("Unknown", Utils.sanitizeTitle("#only #tags"));
+        assertEquals("Unknown", Utils.sanitizeTitle("???"));
+        assertEquals("Unknown", Utils.sanitizeTitle(".f123"));
+    }
+
+    @Test
+    void parseBytes() {
+        assertEquals(512, Utils.parseBytes("512"));
+        assertEquals(5L * 1024 * 1024, Utils.parseBytes("5M"));
+        assertEquals(1536, Utils.parseBytes("1.5K"));
+        assertEquals(2L * 1024 * 1024 * 1024, Utils.parseBytes("2GiB"));
+        assertEquals(512L * 1024 * 1024, Utils.parseBytes(" 512mb "));
+        assertEquals(-1, Utils.parseBytes("fast"));
+        assertEquals(-1, Utils.parseBytes(""));
+        assertEquals(-1, Utils.parseBytes(null));
+    }
+
+    @Test
+    void cleanupPartialFilesProbesPastFragmentGaps(@TempDir Path dir) throws IOException {
+        File destination = dir.resolve("abc.mp4").toFile();
+        List<String> names = List.of("abc.mp4.part", "abc.mp4.ytdl", "abc.mp4.part-Frag1", "abc.mp4.part-Frag3.part",
+                "abc.mp4.part-Frag6", "abc.mp4.part-Frag9", "abc.mp4.part-Frag10", "other.mp4.part-Frag2");
+        for (String name : names) {
+            Files.writeString(dir.resolve(name), "x");
+        }
+
+        // Gaps up to the bound don't stop the cleanup, 10 is found by probing on from it
+        Utils.cleanupPartialFiles(List.of(destination), 9);
+
+        try (var left = Files.list(dir)) {
+            assertEquals(List.of("other.mp4.part-Frag2"), left.map(path -> path.getFileName().toString()).toList());
+        }
+    }
+}